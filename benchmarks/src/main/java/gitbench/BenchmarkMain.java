@@ -0,0 +1,22 @@
+package gitbench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own main, but always with the GC profiler,
+ * so every result comes with its allocation rate (gc.alloc.rate.norm is
+ * bytes allocated per operation).
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
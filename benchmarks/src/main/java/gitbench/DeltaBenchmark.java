@@ -0,0 +1,71 @@
+package gitbench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Applying deltas that each make a few small edits to a base of the given size:
+ * a single one, and a chain of chainDepth applied one after another or composed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DeltaBenchmark {
+  @Param({"4096", "262144", "4194304"})
+  int baseSize;
+
+  @Param({"10", "50"})
+  int chainDepth;
+
+  private byte[] base;
+  private List<byte[]> chain;
+
+  @Setup(Level.Trial)
+  public void createDeltas() {
+    Random random = new Random(42);
+    base = Synthetic.blob(random, baseSize);
+    chain = new ArrayList<byte[]>();
+    byte[] version = base;
+    for (int i = 0; i < chainDepth; i++) {
+      Synthetic.DeltaPair pair = Synthetic.edit(random, version);
+      chain.add(pair.delta);
+      version = pair.result;
+    }
+  }
+
+  @Benchmark
+  public byte[] apply() throws Throwable {
+    return (byte[]) Git.DELTA_APPLY.invokeExact(base, chain.get(0));
+  }
+
+  @Benchmark
+  public byte[] applyChainSequentially() throws Throwable {
+    byte[] version = base;
+    for (byte[] delta : chain) {
+      version = (byte[]) Git.DELTA_APPLY.invokeExact(version, delta);
+    }
+    return version;
+  }
+
+  @Benchmark
+  public byte[] applyChainComposed() throws Throwable {
+    return (byte[]) Git.DELTA_APPLY_CHAIN.invokeExact(base, chain);
+  }
+}
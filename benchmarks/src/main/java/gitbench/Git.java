@@ -0,0 +1,123 @@
+package gitbench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Method handles for the parts of the git implementation that are benchmarked.
+ *
+ * Those classes live in the default package, which Java code in a named package
+ * (and JMH insists on one) can't name. So each method is looked up once, by name
+ * and parameter count, and its default-package types are erased to Object.
+ * JDK types such as long, byte[] and File keep their real type, so calling a
+ * handle with invokeExact doesn't box anything the benchmark would then measure.
+ */
+final class Git {
+  // Main
+  static final MethodHandle PARSE_PACKFILE = method("Main", "parsePackfile", 1);
+  static final MethodHandle SCAN_PACK_OBJECT = method("Main", "scanPackObject", 2);
+  static final MethodHandle PACKED_OBJECT_END = getter("Main$PackedObject", "end");
+  static final MethodHandle WRITE_TREE = method("Main", "writeTree", 2);
+
+  // Packs
+  static final MethodHandle NEW_PACK_FILE = constructor("PackFile", 1);
+  static final MethodHandle NEW_PACK_READER = constructor("PackReader", 3);
+  static final MethodHandle PACK_READER_READ = method("PackReader", "read", 1);
+  static final MethodHandle NEW_DELTA_BASE_CACHE = constructor("DeltaBaseCache", 1);
+  static final MethodHandle PACK_INFLATER_GET = method("PackInflater", "get", 0);
+  static final MethodHandle PACK_INFLATER_INFLATE = method("PackInflater", "inflate", 3);
+  static final MethodHandle DELTA_APPLY = method("Delta", "apply", 2);
+  static final MethodHandle DELTA_APPLY_CHAIN = method("Delta", "applyChain", 2);
+
+  // Loose objects
+  static final MethodHandle NEW_LOOSE_OBJECT_WRITER = constructor("LooseObjectWriter", 2);
+  static final MethodHandle NEW_BLOB_HASHER = constructor("BlobHasher", 1);
+  static final MethodHandle BLOB_HASHER_HASH = method("BlobHasher", "hash", 1);
+
+  // Ids
+  static final MethodHandle OBJECT_ID_TO_HEX = method("ObjectId", "toHex", 1);
+  static final MethodHandle OBJECT_ID_FROM_HEX = method("ObjectId", "fromHex", 1);
+
+  private Git() {
+  }
+
+  /**
+   * Creates a LooseObjectWriter for objectsDir that doesn't fsync.
+   */
+  static Object newLooseObjectWriter(File objectsDir) throws Throwable {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Object none = Enum.valueOf((Class) type("LooseObjectWriter$Durability"), "NONE");
+    return (Object) NEW_LOOSE_OBJECT_WRITER.invokeExact(objectsDir, none);
+  }
+
+  private static MethodHandle method(String owner, String name, int parameterCount) {
+    try {
+      for (Method method : type(owner).getDeclaredMethods()) {
+        if (method.getName().equals(name) && method.getParameterCount() == parameterCount) {
+          return erase(lookup(owner).unreflect(method));
+        }
+      }
+      throw new NoSuchMethodException(owner + "." + name + " with " + parameterCount + " parameters");
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static MethodHandle constructor(String owner, int parameterCount) {
+    try {
+      for (Constructor<?> constructor : type(owner).getDeclaredConstructors()) {
+        if (constructor.getParameterCount() == parameterCount) {
+          return erase(lookup(owner).unreflectConstructor(constructor));
+        }
+      }
+      throw new NoSuchMethodException(owner + " constructor with " + parameterCount + " parameters");
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static MethodHandle getter(String owner, String name) {
+    try {
+      Field field = type(owner).getDeclaredField(name);
+      return erase(lookup(owner).unreflectGetter(field));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * Replaces every default-package type in the handle's signature with Object.
+   */
+  private static MethodHandle erase(MethodHandle handle) {
+    MethodType type = handle.type();
+    for (int i = 0; i < type.parameterCount(); i++) {
+      if (inDefaultPackage(type.parameterType(i))) {
+        type = type.changeParameterType(i, Object.class);
+      }
+    }
+    if (inDefaultPackage(type.returnType())) {
+      type = type.changeReturnType(Object.class);
+    }
+    return handle.asType(type);
+  }
+
+  private static boolean inDefaultPackage(Class<?> type) {
+    while (type.isArray()) {
+      type = type.getComponentType();
+    }
+    return !type.isPrimitive() && type.getPackageName().isEmpty();
+  }
+
+  private static MethodHandles.Lookup lookup(String owner) throws ReflectiveOperationException {
+    return MethodHandles.privateLookupIn(type(owner), MethodHandles.lookup());
+  }
+
+  private static Class<?> type(String name) throws ClassNotFoundException {
+    return Class.forName(name, true, Git.class.getClassLoader());
+  }
+}
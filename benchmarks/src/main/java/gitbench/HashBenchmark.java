@@ -0,0 +1,66 @@
+package gitbench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing a file as a blob, with and without writing it as a loose object.
+ * After the first write the object exists, so hashAndWrite measures what
+ * hash-object -w and write-tree pay for content that's already stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HashBenchmark {
+  @Param({"4096", "1048576"})
+  int fileSize;
+
+  private File directory;
+  private File file;
+  private Object hasher;
+  private Object writingHasher;
+
+  @Setup(Level.Trial)
+  public void createFile() throws Throwable {
+    directory = Files.createTempDirectory("bench-").toFile();
+    file = new File(directory, "blob.txt");
+    Files.write(file.toPath(), Synthetic.blob(new Random(42), fileSize));
+    hasher = (Object) Git.NEW_BLOB_HASHER.invokeExact((Object) null);
+    Object writer = Git.newLooseObjectWriter(new File(directory, "objects"));
+    writingHasher = (Object) Git.NEW_BLOB_HASHER.invokeExact(writer);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteFile() throws IOException {
+    Synthetic.delete(directory);
+  }
+
+  @Benchmark
+  public byte[] hash() throws Throwable {
+    return (byte[]) Git.BLOB_HASHER_HASH.invokeExact(hasher, file);
+  }
+
+  @Benchmark
+  public byte[] hashAndWrite() throws Throwable {
+    return (byte[]) Git.BLOB_HASHER_HASH.invokeExact(writingHasher, file);
+  }
+}
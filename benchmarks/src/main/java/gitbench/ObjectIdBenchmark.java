@@ -0,0 +1,46 @@
+package gitbench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting object ids between their raw and hex forms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ObjectIdBenchmark {
+  private byte[] raw;
+  private String hex;
+
+  @Setup(Level.Trial)
+  public void createId() throws Throwable {
+    raw = new byte[20];
+    new Random(42).nextBytes(raw);
+    hex = (String) Git.OBJECT_ID_TO_HEX.invokeExact(raw);
+  }
+
+  @Benchmark
+  public String toHex() throws Throwable {
+    return (String) Git.OBJECT_ID_TO_HEX.invokeExact(raw);
+  }
+
+  @Benchmark
+  public Object fromHex() throws Throwable {
+    return (Object) Git.OBJECT_ID_FROM_HEX.invokeExact((CharSequence) hex);
+  }
+}
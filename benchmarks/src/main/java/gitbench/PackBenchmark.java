@@ -0,0 +1,108 @@
+package gitbench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a synthetic pack: the two index-pack passes clone runs, inflating
+ * every object, and reading every object with its deltas applied.
+ * Each operation covers the whole pack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PackBenchmark {
+  @Param({"2000"})
+  int objects;
+
+  @Param({"0", "10", "50"})
+  int chainDepth;
+
+  @Param({"SMALL", "MIXED"})
+  Synthetic.Sizes sizes;
+
+  private File file;
+  private Object pack;
+  private Synthetic.Pack layout;
+
+  @Setup(Level.Trial)
+  public void createPack() throws Throwable {
+    layout = Synthetic.pack(42, objects, chainDepth, sizes);
+    file = File.createTempFile("bench-", ".pack");
+    Files.write(file.toPath(), layout.data);
+    pack = (Object) Git.NEW_PACK_FILE.invokeExact(file);
+  }
+
+  @TearDown(Level.Trial)
+  public void deletePack() throws IOException {
+    ((Closeable) pack).close();
+    file.delete();
+  }
+
+  /**
+   * Both passes of clone's pack indexing: scan, resolve deltas, hash everything.
+   */
+  @Benchmark
+  public List<?> indexPack() throws Throwable {
+    return (List<?>) Git.PARSE_PACKFILE.invokeExact(pack);
+  }
+
+  /**
+   * Pass 1 only: walks the object headers and skips over each zlib stream.
+   */
+  @Benchmark
+  public long scanObjects() throws Throwable {
+    long position = 12;
+    for (int i = 0; i < objects; i++) {
+      Object object = (Object) Git.SCAN_PACK_OBJECT.invokeExact(pack, position);
+      position = (long) Git.PACKED_OBJECT_END.invokeExact(object);
+    }
+    return position;
+  }
+
+  /**
+   * Inflates every object's data as stored, deltas left unapplied.
+   */
+  @Benchmark
+  public void inflateObjects(Blackhole blackhole) throws Throwable {
+    Object inflater = (Object) Git.PACK_INFLATER_GET.invokeExact();
+    for (int i = 0; i < objects; i++) {
+      blackhole.consume((byte[]) Git.PACK_INFLATER_INFLATE.invokeExact(inflater, pack,
+          layout.dataStarts[i], layout.inflatedSizes[i]));
+    }
+  }
+
+  /**
+   * Reads every object with its delta chain applied, through a fresh base cache.
+   */
+  @Benchmark
+  public void readObjects(Blackhole blackhole) throws Throwable {
+    Object cache = (Object) Git.NEW_DELTA_BASE_CACHE.invokeExact(96L * 1024 * 1024);
+    // The pack only has OFS_DELTAs, so there are no ids to look up
+    Object reader = (Object) Git.NEW_PACK_READER.invokeExact(pack, (Object) null, cache);
+    for (int i = 0; i < objects; i++) {
+      blackhole.consume((Object) Git.PACK_READER_READ.invokeExact(reader, layout.offsets[i]));
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package gitbench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Deterministic test data for the benchmarks: blobs, deltas, packs and working trees.
+ * Everything comes from a seeded Random, so the same parameters always give
+ * byte-for-byte the same data and results stay comparable between runs.
+ *
+ * Blob content looks like source code (lines of words from a small vocabulary),
+ * so it compresses about as well as real files do.
+ */
+public final class Synthetic {
+  private static final int OBJ_BLOB = 3;
+  private static final int OBJ_OFS_DELTA = 6;
+
+  /**
+   * How blob sizes are distributed: log-uniform between min and max.
+   */
+  public enum Sizes {
+    SMALL(64, 8 * 1024),          // typical source files
+    MIXED(64, 1024 * 1024),       // mostly small, now and then a large one
+    LARGE(256 * 1024, 4 * 1024 * 1024);
+
+    final int min;
+    final int max;
+
+    Sizes(int min, int max) {
+      this.min = min;
+      this.max = max;
+    }
+
+    int next(Random random) {
+      double log = Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min));
+      return (int) Math.exp(log);
+    }
+  }
+
+  /**
+   * A generated pack, with where each object and its zlib data start.
+   */
+  static final class Pack {
+    final byte[] data;
+    final long[] offsets;
+    final long[] dataStarts;
+    final long[] inflatedSizes;
+
+    Pack(byte[] data, long[] offsets, long[] dataStarts, long[] inflatedSizes) {
+      this.data = data;
+      this.offsets = offsets;
+      this.dataStarts = dataStarts;
+      this.inflatedSizes = inflatedSizes;
+    }
+  }
+
+  /**
+   * A base, a delta against it, and what applying the delta gives.
+   */
+  static final class DeltaPair {
+    final byte[] base;
+    final byte[] delta;
+    final byte[] result;
+
+    DeltaPair(byte[] base, byte[] delta, byte[] result) {
+      this.base = base;
+      this.delta = delta;
+      this.result = result;
+    }
+  }
+
+  private static final String[] WORDS = vocabulary(new Random(0), 256);
+
+  private Synthetic() {
+  }
+
+  /**
+   * Creates size bytes of source-like text.
+   */
+  static byte[] blob(Random random, int size) {
+    byte[] data = new byte[size];
+    int position = 0;
+    int column = 0;
+    int lineLength = 20 + random.nextInt(60);
+    while (position < size) {
+      byte[] word = WORDS[random.nextInt(WORDS.length)].getBytes();
+      for (int i = 0; i < word.length && position < size; i++) {
+        data[position++] = word[i];
+      }
+      column += word.length + 1;
+      if (position < size) {
+        data[position++] = (byte) (column >= lineLength ? '\n' : ' ');
+      }
+      if (column >= lineLength) {
+        column = 0;
+        lineLength = 20 + random.nextInt(60);
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Edits a copy of base in a few places, the way a commit changes a file,
+   * and returns the edited version with the delta that turns base into it.
+   */
+  static DeltaPair edit(Random random, byte[] base) {
+    DeltaWriter delta = new DeltaWriter(base.length);
+    int edits = 1 + random.nextInt(4);
+    int[] points = new int[edits];
+    for (int i = 0; i < edits; i++) {
+      points[i] = random.nextInt(base.length + 1);
+    }
+    Arrays.sort(points);
+
+    int position = 0;
+    for (int point : points) {
+      if (point < position) {
+        continue;
+      }
+      delta.copy(base, position, point - position);
+      delta.insert(blob(random, 8 + random.nextInt(120)));
+      position = Math.min(base.length, point + random.nextInt(64));
+    }
+    delta.copy(base, position, base.length - position);
+    return new DeltaPair(base, delta.delta(), delta.result());
+  }
+
+  /**
+   * Creates a pack of blobs where every base is followed by a chain of chainDepth
+   * OFS_DELTA objects, each against the one before it.
+   */
+  static Pack pack(long seed, int objectCount, int chainDepth, Sizes sizes) throws IOException {
+    Random random = new Random(seed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] {'P', 'A', 'C', 'K', 0, 0, 0, 2});
+    writeInt(out, objectCount);
+
+    long[] offsets = new long[objectCount];
+    long[] dataStarts = new long[objectCount];
+    long[] inflatedSizes = new long[objectCount];
+    Deflater deflater = new Deflater();
+
+    byte[] previous = null;
+    for (int i = 0; i < objectCount; i++) {
+      offsets[i] = out.size();
+      byte[] content;
+      if (i % (chainDepth + 1) == 0) {
+        previous = blob(random, sizes.next(random));
+        content = previous;
+        writeObjectHeader(out, OBJ_BLOB, content.length);
+      } else {
+        DeltaPair pair = edit(random, previous);
+        previous = pair.result;
+        content = pair.delta;
+        writeObjectHeader(out, OBJ_OFS_DELTA, content.length);
+        writeBaseOffset(out, offsets[i] - offsets[i - 1]);
+      }
+      dataStarts[i] = out.size();
+      inflatedSizes[i] = content.length;
+      deflate(deflater, content, out);
+    }
+
+    out.write(sha1(out.toByteArray()));
+    return new Pack(out.toByteArray(), offsets, dataStarts, inflatedSizes);
+  }
+
+  /**
+   * Creates fileCount files under root, fanOut files per directory and fanOut
+   * directories per parent, plus an empty .git/objects for write-tree.
+   */
+  static void workTree(File root, long seed, int fileCount, int fanOut, Sizes sizes) throws IOException {
+    Random random = new Random(seed);
+    new File(root, ".git/objects").mkdirs();
+    for (int i = 0; i < fileCount; i++) {
+      int directory = i / fanOut;
+      File dir = new File(root, "src/d" + (directory / fanOut) + "/d" + (directory % fanOut));
+      dir.mkdirs();
+      Files.write(new File(dir, "file" + i + ".txt").toPath(), blob(random, sizes.next(random)));
+    }
+  }
+
+  /**
+   * Deletes a directory tree.
+   */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void writeObjectHeader(ByteArrayOutputStream out, int type, long size) {
+    int b = (type << 4) | (int) (size & 0x0F);
+    size >>>= 4;
+    while (size != 0) {
+      out.write(b | 0x80);
+      b = (int) (size & 0x7F);
+      size >>>= 7;
+    }
+    out.write(b);
+  }
+
+  /**
+   * Writes an OFS_DELTA base distance: big-endian 7-bit groups, each but the
+   * last one biased by one.
+   */
+  private static void writeBaseOffset(ByteArrayOutputStream out, long distance) {
+    byte[] buffer = new byte[10];
+    int position = buffer.length - 1;
+    buffer[position] = (byte) (distance & 0x7F);
+    while ((distance >>>= 7) != 0) {
+      buffer[--position] = (byte) (0x80 | (--distance & 0x7F));
+    }
+    out.write(buffer, position, buffer.length - position);
+  }
+
+  private static void deflate(Deflater deflater, byte[] content, ByteArrayOutputStream out) {
+    deflater.reset();
+    deflater.setInput(content);
+    deflater.finish();
+    byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      int count = deflater.deflate(buffer);
+      out.write(buffer, 0, count);
+    }
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  private static byte[] sha1(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String[] vocabulary(Random random, int size) {
+    String[] words = new String[size];
+    for (int i = 0; i < size; i++) {
+      char[] word = new char[1 + random.nextInt(10)];
+      for (int j = 0; j < word.length; j++) {
+        word[j] = (char) ('a' + random.nextInt(26));
+      }
+      words[i] = new String(word);
+    }
+    return words;
+  }
+
+  /**
+   * Builds a delta in git's format while keeping track of the result it produces.
+   */
+  private static final class DeltaWriter {
+    private final ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    private final int baseSize;
+
+    DeltaWriter(int baseSize) {
+      this.baseSize = baseSize;
+    }
+
+    /**
+     * Copies length bytes of base at offset, in chunks of at most 64K like git does.
+     */
+    void copy(byte[] base, int offset, int length) {
+      result.write(base, offset, length);
+      while (length > 0) {
+        int chunk = Math.min(length, 0x10000);
+        int command = 0x80;
+        byte[] arguments = new byte[7];
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+          int b = (offset >>> (8 * i)) & 0xFF;
+          if (b != 0) {
+            command |= 1 << i;
+            arguments[count++] = (byte) b;
+          }
+        }
+        // A size of 0x10000 is written as no size bytes at all
+        int size = chunk == 0x10000 ? 0 : chunk;
+        for (int i = 0; i < 3; i++) {
+          int b = (size >>> (8 * i)) & 0xFF;
+          if (b != 0) {
+            command |= 0x10 << i;
+            arguments[count++] = (byte) b;
+          }
+        }
+        instructions.write(command);
+        instructions.write(arguments, 0, count);
+        offset += chunk;
+        length -= chunk;
+      }
+    }
+
+    /**
+     * Inserts literal data, in chunks of at most 127 bytes.
+     */
+    void insert(byte[] data) {
+      result.write(data, 0, data.length);
+      for (int position = 0; position < data.length; position += 127) {
+        int chunk = Math.min(127, data.length - position);
+        instructions.write(chunk);
+        instructions.write(data, position, chunk);
+      }
+    }
+
+    byte[] delta() {
+      ByteArrayOutputStream delta = new ByteArrayOutputStream(instructions.size() + 20);
+      writeSize(delta, baseSize);
+      writeSize(delta, result.size());
+      delta.write(instructions.toByteArray(), 0, instructions.size());
+      return delta.toByteArray();
+    }
+
+    byte[] result() {
+      return result.toByteArray();
+    }
+
+    private static void writeSize(ByteArrayOutputStream out, long size) {
+      while (size >= 0x80) {
+        out.write((int) (size & 0x7F) | 0x80);
+        size >>>= 7;
+      }
+      out.write((int) size);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package gitbench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * write-tree over a synthetic working tree whose objects are already stored:
+ * once without an index, so every file is hashed again, and once with an
+ * up-to-date index, where only the stat data is checked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WriteTreeBenchmark {
+  @Param({"2000"})
+  int files;
+
+  @Param({"16"})
+  int fanOut;
+
+  @Param({"SMALL"})
+  Synthetic.Sizes sizes;
+
+  private File directory;
+  private File index;
+  private Object writer;
+
+  @Setup(Level.Trial)
+  public void createWorkTree() throws Throwable {
+    directory = Files.createTempDirectory("bench-").toFile();
+    index = new File(directory, ".git/index");
+    Synthetic.workTree(directory, 42, files, fanOut, sizes);
+    writer = Git.newLooseObjectWriter(new File(directory, ".git/objects"));
+
+    // Store the objects and write the index once
+    Git.WRITE_TREE.invoke(directory, writer);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteWorkTree() throws IOException {
+    ((Closeable) writer).close();
+    Synthetic.delete(directory);
+  }
+
+  @Benchmark
+  public String withoutIndex() throws Throwable {
+    index.delete();
+    return (String) Git.WRITE_TREE.invokeExact(directory, writer);
+  }
+
+  @Benchmark
+  public String withIndex() throws Throwable {
+    return (String) Git.WRITE_TREE.invokeExact(directory, writer);
+  }
+}
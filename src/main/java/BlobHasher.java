@@ -0,0 +1,146 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Hashes files as blobs and optionally writes them as loose objects, streaming the
+ * content through a fixed buffer, so files of any size work.
+ *
+ * The size comes from the filesystem, so the "blob <size>\0" header can be hashed
+ * first. A file is hashed on its own first, so content that is already stored is
+ * never deflated; only a new object takes a second pass that feeds the digest and
+ * the deflater together. The object is deflated into a temp file that the
+ * LooseObjectWriter moves into place. A channel that can't be read twice gets only
+ * that second pass.
+ * The digest, deflater and buffer are reused for every file hashed by one instance.
+ */
+class BlobHasher {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final LooseObjectWriter writer;
+  private final MessageDigest sha1;
+  private final Deflater deflater = new Deflater();
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+  /**
+   * Creates a hasher that writes objects through writer, or only hashes if it is null.
+   */
+  BlobHasher(LooseObjectWriter writer) throws NoSuchAlgorithmException {
+    this.writer = writer;
+    this.sha1 = MessageDigest.getInstance("SHA-1");
+  }
+
+  /**
+   * Hashes a file as a blob (writing it if this hasher writes) and returns its raw id.
+   */
+  byte[] hash(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return hash(channel, channel.size());
+    }
+  }
+
+  /**
+   * Hashes size bytes read from a channel as a blob (writing it if this hasher writes)
+   * and returns its raw id.
+   */
+  byte[] hash(ReadableByteChannel in, long size) throws IOException {
+    byte[] header = ("blob " + size + "\0").getBytes();
+    if (writer == null) {
+      return digest(header, in, size);
+    }
+
+    if (in instanceof FileChannel) {
+      // Hash first: an object that already exists costs no deflating and no temp file
+      FileChannel channel = (FileChannel) in;
+      long start = channel.position();
+      byte[] id = digest(header, in, size);
+      String hex = ObjectId.toHex(id);
+      if (writer.contains(hex)) {
+        return id;
+      }
+
+      channel.position(start);
+      File temp = deflate(header, in, size);
+      if (!Arrays.equals(sha1.digest(), id)) {
+        temp.delete();
+        throw new IOException("File changed while hashing it");
+      }
+      writer.commit(temp, hex);
+      return id;
+    }
+
+    // Read only once, so hashed and deflated together
+    File temp = deflate(header, in, size);
+    byte[] id = sha1.digest();
+    writer.commit(temp, ObjectId.toHex(id));
+    return id;
+  }
+
+  /**
+   * Returns the writer objects go through, or null if this hasher only hashes.
+   */
+  LooseObjectWriter writer() {
+    return writer;
+  }
+
+  /**
+   * Returns the id of the blob with the given header and size bytes read from in.
+   */
+  private byte[] digest(byte[] header, ReadableByteChannel in, long size) throws IOException {
+    sha1.reset();
+    sha1.update(header);
+    copy(in, size, null);
+    return sha1.digest();
+  }
+
+  /**
+   * Deflates the blob into a new temp file, since the final name depends on the hash,
+   * and returns the file. The digest is left holding the blob, ready for digest().
+   */
+  private File deflate(byte[] header, ReadableByteChannel in, long size) throws IOException {
+    sha1.reset();
+    sha1.update(header);
+    File temp = writer.createTempFile();
+    try {
+      deflater.reset();
+      try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp), deflater, BUFFER_SIZE)) {
+        out.write(header);
+        copy(in, size, out);
+      }
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    return temp;
+  }
+
+  /**
+   * Feeds exactly size bytes from in to the digest and, if it isn't null, to out.
+   */
+  private void copy(ReadableByteChannel in, long size, OutputStream out) throws IOException {
+    long remaining = size;
+    while (remaining > 0) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), remaining));
+      int count = in.read(buffer);
+      if (count < 0) {
+        throw new IOException("File shrank while hashing it: " + remaining + " of " + size + " bytes missing");
+      }
+      sha1.update(buffer.array(), 0, count);
+      if (out != null) {
+        out.write(buffer.array(), 0, count);
+      }
+      remaining -= count;
+    }
+  }
+}
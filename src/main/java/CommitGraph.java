@@ -0,0 +1,233 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a commit-graph file (.git/objects/info/commit-graph), memory-mapped.
+ * For every commit it has the root tree, the parents, the commit date and the
+ * generation number, in fixed-width records, so history can be walked without
+ * inflating a single commit. Commits are numbered by their position in id order;
+ * parents are stored as such positions. See CommitGraphWriter for the layout.
+ */
+class CommitGraph implements Closeable {
+  static final int SIGNATURE = 0x43475048;  // "CGPH"
+  static final int CHUNK_OID_FANOUT = 0x4f494446;  // "OIDF"
+  static final int CHUNK_OID_LOOKUP = 0x4f49444c;  // "OIDL"
+  static final int CHUNK_COMMIT_DATA = 0x43444154;  // "CDAT"
+  static final int CHUNK_EXTRA_EDGES = 0x45444745;  // "EDGE"
+
+  // Parent slots: no parent, or (with the high bit) an index into the extra edges
+  static final int PARENT_NONE = 0x70000000;
+  static final int PARENT_EXTRA = 0x80000000;
+
+  private static final int HEADER_LENGTH = 8;
+  private static final int ID_LENGTH = 20;
+  private static final int RECORD_LENGTH = ID_LENGTH + 16;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int commitCount;
+
+  // Where each chunk starts, or -1 for a missing optional one
+  private final int fanoutStart;
+  private final int idStart;
+  private final int dataStart;
+  private final int edgeStart;
+
+  CommitGraph(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Commit-graph too large: " + file);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      if (size < HEADER_LENGTH + 12 + ID_LENGTH || buffer.getInt(0) != SIGNATURE
+          || buffer.get(4) != 1 || buffer.get(5) != 1) {
+        throw new IOException("Not a version 1 SHA-1 commit-graph: " + file);
+      }
+      if (buffer.get(7) != 0) {
+        throw new IOException("Split commit-graphs aren't supported: " + file);
+      }
+
+      // Chunk table: an id and offset per chunk, then a zero id with the end offset
+      int chunkCount = buffer.get(6) & 0xFF;
+      int fanout = -1;
+      int ids = -1;
+      int data = -1;
+      int edges = -1;
+      for (int i = 0; i < chunkCount; i++) {
+        int entry = HEADER_LENGTH + i * 12;
+        int id = buffer.getInt(entry);
+        long offset = buffer.getLong(entry + 4);
+        if (offset < 0 || offset > size - ID_LENGTH) {
+          throw new IOException("Bad chunk offset in commit-graph: " + file);
+        }
+        switch (id) {
+          case CHUNK_OID_FANOUT: fanout = (int) offset; break;
+          case CHUNK_OID_LOOKUP: ids = (int) offset; break;
+          case CHUNK_COMMIT_DATA: data = (int) offset; break;
+          case CHUNK_EXTRA_EDGES: edges = (int) offset; break;
+          default: break;  // Chunks we don't use, such as bloom filters
+        }
+      }
+      if (fanout < 0 || ids < 0 || data < 0) {
+        throw new IOException("Commit-graph is missing a required chunk: " + file);
+      }
+
+      fanoutStart = fanout;
+      idStart = ids;
+      dataStart = data;
+      edgeStart = edges;
+      commitCount = buffer.getInt(fanoutStart + 255 * 4);
+      if ((long) dataStart + (long) commitCount * RECORD_LENGTH > size
+          || (long) idStart + (long) commitCount * ID_LENGTH > size) {
+        throw new IOException("Truncated commit-graph: " + file);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the commit-graph of the given .git directory, or returns null if there is
+   * none. A shallow repository's graph is never used: its commits have parents
+   * that are missing on purpose.
+   */
+  static CommitGraph open(File gitDir) throws IOException {
+    File file = new File(gitDir, "objects/info/commit-graph");
+    if (!file.isFile() || new File(gitDir, "shallow").exists()) {
+      return null;
+    }
+    return new CommitGraph(file);
+  }
+
+  /**
+   * Returns the number of commits in the graph.
+   */
+  int size() {
+    return commitCount;
+  }
+
+  /**
+   * Returns the position of the commit whose id starts at id[idOffset], or -1 if it
+   * isn't in the graph.
+   */
+  int find(byte[] id, int idOffset) {
+    int first = id[idOffset] & 0xFF;
+    int low = first == 0 ? 0 : buffer.getInt(fanoutStart + (first - 1) * 4);
+    int high = buffer.getInt(fanoutStart + first * 4);
+
+    // Binary search over [low, high)
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareId(mid, id, idOffset);
+      if (cmp == 0) {
+        return mid;
+      } else if (cmp < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copies the id of the commit at position into dst.
+   */
+  void idAt(int position, byte[] dst, int dstOffset) {
+    buffer.get(idStart + position * ID_LENGTH, dst, dstOffset, ID_LENGTH);
+  }
+
+  /**
+   * Copies the id of the root tree of the commit at position into dst.
+   */
+  void treeAt(int position, byte[] dst, int dstOffset) {
+    buffer.get(dataStart + position * RECORD_LENGTH, dst, dstOffset, ID_LENGTH);
+  }
+
+  /**
+   * Returns the positions of the parents of the commit at position, in order.
+   */
+  int[] parentsAt(int position) throws IOException {
+    int record = dataStart + position * RECORD_LENGTH + ID_LENGTH;
+    int first = buffer.getInt(record);
+    int second = buffer.getInt(record + 4);
+    if (first == PARENT_NONE) {
+      return new int[0];
+    }
+    if (second == PARENT_NONE) {
+      return new int[] {checkPosition(first)};
+    }
+    if ((second & PARENT_EXTRA) == 0) {
+      return new int[] {checkPosition(first), checkPosition(second)};
+    }
+
+    // An octopus merge: the second and later parents are a list in the extra edges,
+    // whose last entry has the high bit set
+    if (edgeStart < 0) {
+      throw new IOException("Commit-graph refers to extra edges it doesn't have");
+    }
+    int edge = edgeStart + (second & ~PARENT_EXTRA) * 4;
+    int count = 1;
+    while ((buffer.getInt(edge + (count - 1) * 4) & PARENT_EXTRA) == 0) {
+      count++;
+    }
+    int[] parents = new int[count + 1];
+    parents[0] = checkPosition(first);
+    for (int i = 0; i < count; i++) {
+      parents[i + 1] = checkPosition(buffer.getInt(edge + i * 4) & ~PARENT_EXTRA);
+    }
+    return parents;
+  }
+
+  /**
+   * Returns the generation number of the commit at position: one more than the
+   * largest generation among its parents, and 1 for a root commit.
+   */
+  int generationAt(int position) {
+    return buffer.getInt(dataStart + position * RECORD_LENGTH + ID_LENGTH + 8) >>> 2;
+  }
+
+  /**
+   * Returns the commit date of the commit at position, in seconds since the epoch.
+   */
+  long commitTimeAt(int position) {
+    int record = dataStart + position * RECORD_LENGTH + ID_LENGTH + 8;
+    long high = buffer.getInt(record) & 0x3L;
+    return (high << 32) | (buffer.getInt(record + 4) & 0xFFFFFFFFL);
+  }
+
+  private int checkPosition(int position) throws IOException {
+    if (position < 0 || position >= commitCount) {
+      throw new IOException("Commit-graph has a parent out of range: " + position);
+    }
+    return position;
+  }
+
+  /**
+   * Compares the id at position with the one at id[idOffset], as unsigned bytes.
+   */
+  private int compareId(int position, byte[] id, int idOffset) {
+    int base = idStart + position * ID_LENGTH;
+    for (int i = 0; i < ID_LENGTH; i++) {
+      int a = buffer.get(base + i) & 0xFF;
+      int b = id[idOffset + i] & 0xFF;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
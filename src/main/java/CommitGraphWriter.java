@@ -0,0 +1,223 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * Writes a commit-graph file in git's format (version 1, SHA-1, no split chains).
+ *
+ * Layout:
+ *   "CGPH", version 1, hash version 1, chunk count, 0 base graphs
+ *   chunk table: a 4-byte id and 8-byte offset per chunk, then a zero id and the end
+ *   OIDF: 256 counts of commits whose first id byte is <= i
+ *   OIDL: sorted commit ids
+ *   CDAT: per commit its root tree id, two parent positions (0x70000000 for none,
+ *         or the high bit and an index into EDGE for an octopus merge), then the
+ *         generation number in the top 30 bits and the commit date in the low 34
+ *   EDGE: parents past the first of octopus merges; the last of each list has the high bit set
+ *   checksum of everything before it
+ */
+class CommitGraphWriter {
+  // Largest generation number and commit date the CDAT fields hold
+  private static final int GENERATION_MAX = 0x3FFFFFFF;
+  private static final long TIME_MAX = (1L << 34) - 1;
+
+  private static final int HEADER_LENGTH = 8;
+
+  /**
+   * Writes .git/objects/info/commit-graph for every commit reachable from the refs.
+   * Returns the number of commits in it, or -1 if the repository is shallow, which
+   * a commit-graph can't describe.
+   */
+  static int write(File gitDir) throws IOException, DataFormatException, NoSuchAlgorithmException {
+    if (new File(gitDir, "shallow").exists()) {
+      return -1;
+    }
+
+    List<RevWalk.Commit> commits;
+    try (Stats.Phase phase = Stats.start("commit-graph");
+        RevWalk walk = new RevWalk(gitDir)) {
+      for (String id : Refs.all(gitDir).values()) {
+        // Refs to trees or blobs have no history to record
+        ObjectHeader header = walk.db().readHeader(ObjectId.fromHex(id).toRaw(), 0);
+        if (header != null && (header.type.equals("commit") || header.type.equals("tag"))) {
+          walk.markStart(walk.resolve(id));
+        }
+      }
+      commits = walk.reachable();
+
+      File infoDir = new File(gitDir, "objects/info");
+      infoDir.mkdirs();
+      File temp = Files.createTempFile(infoDir.toPath(), "tmp_graph_", null).toFile();
+      try {
+        write(temp, commits);
+        File graph = new File(infoDir, "commit-graph");
+        Main.makeReadOnly(temp.toPath());
+        Files.move(temp.toPath(), graph.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        phase.bytes(graph.length()).objects(commits.size());
+      } finally {
+        temp.delete();
+      }
+    }
+    return commits.size();
+  }
+
+  /**
+   * Writes a commit-graph for the given parsed commits, which must include the
+   * parents of every one of them.
+   */
+  static void write(File file, List<RevWalk.Commit> commits) throws IOException, NoSuchAlgorithmException {
+    // Step 1: Positions in id order, and generation numbers where the graph had none
+    List<RevWalk.Commit> sorted = new ArrayList<RevWalk.Commit>(commits);
+    sorted.sort((a, b) -> a.id.compareTo(b.id));
+    Map<ObjectId, Integer> positions = new HashMap<ObjectId, Integer>();
+    for (int i = 0; i < sorted.size(); i++) {
+      positions.put(sorted.get(i).id, i);
+    }
+    for (RevWalk.Commit commit : sorted) {
+      computeGeneration(commit);
+    }
+
+    // Step 2: Octopus merges keep their extra parents in the EDGE chunk
+    List<Integer> edges = new ArrayList<Integer>();
+    for (RevWalk.Commit commit : sorted) {
+      if (commit.parents.length > 2) {
+        for (int i = 1; i < commit.parents.length; i++) {
+          int position = position(positions, commit.parents[i]);
+          edges.add(i == commit.parents.length - 1 ? position | CommitGraph.PARENT_EXTRA : position);
+        }
+      }
+    }
+
+    // Step 3: The chunk table
+    int[] chunkIds = edges.isEmpty()
+        ? new int[] {CommitGraph.CHUNK_OID_FANOUT, CommitGraph.CHUNK_OID_LOOKUP, CommitGraph.CHUNK_COMMIT_DATA}
+        : new int[] {CommitGraph.CHUNK_OID_FANOUT, CommitGraph.CHUNK_OID_LOOKUP, CommitGraph.CHUNK_COMMIT_DATA,
+            CommitGraph.CHUNK_EXTRA_EDGES};
+    long[] chunkLengths = {256 * 4, 20L * sorted.size(), 36L * sorted.size(), 4L * edges.size()};
+
+    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+    BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
+    DigestOutputStream digestStream = new DigestOutputStream(bos, sha1);
+    DataOutputStream out = new DataOutputStream(digestStream);
+
+    try {
+      // Header
+      out.writeInt(CommitGraph.SIGNATURE);
+      out.writeByte(1);
+      out.writeByte(1);
+      out.writeByte(chunkIds.length);
+      out.writeByte(0);
+
+      long offset = HEADER_LENGTH + 12L * (chunkIds.length + 1);
+      for (int i = 0; i < chunkIds.length; i++) {
+        out.writeInt(chunkIds[i]);
+        out.writeLong(offset);
+        offset += chunkLengths[i];
+      }
+      out.writeInt(0);
+      out.writeLong(offset);
+
+      // OIDF
+      int[] counts = new int[256];
+      for (RevWalk.Commit commit : sorted) {
+        counts[commit.id.toRaw()[0] & 0xFF]++;
+      }
+      int total = 0;
+      for (int i = 0; i < 256; i++) {
+        total += counts[i];
+        out.writeInt(total);
+      }
+
+      // OIDL
+      byte[] id = new byte[20];
+      for (RevWalk.Commit commit : sorted) {
+        commit.id.copyRawTo(id, 0);
+        out.write(id);
+      }
+
+      // CDAT
+      int edgeIndex = 0;
+      for (RevWalk.Commit commit : sorted) {
+        commit.tree.copyRawTo(id, 0);
+        out.write(id);
+
+        RevWalk.Commit[] parents = commit.parents;
+        out.writeInt(parents.length > 0 ? position(positions, parents[0]) : CommitGraph.PARENT_NONE);
+        if (parents.length > 2) {
+          out.writeInt(CommitGraph.PARENT_EXTRA | edgeIndex);
+          edgeIndex += parents.length - 1;
+        } else {
+          out.writeInt(parents.length == 2 ? position(positions, parents[1]) : CommitGraph.PARENT_NONE);
+        }
+
+        long time = Math.max(0, Math.min(commit.time, TIME_MAX));
+        out.writeInt((commit.generation << 2) | (int) (time >>> 32));
+        out.writeInt((int) time);
+      }
+
+      // EDGE
+      for (int edge : edges) {
+        out.writeInt(edge);
+      }
+
+      // Trailer: checksum of everything written so far
+      out.flush();
+      digestStream.on(false);
+      bos.write(sha1.digest());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Works out the generation number of a commit that wasn't in the graph, and of its
+   * ancestors that weren't: one more than the largest among its parents.
+   */
+  private static void computeGeneration(RevWalk.Commit commit) {
+    if (commit.generation != RevWalk.GENERATION_INFINITY) {
+      return;
+    }
+    // Depth first without recursion, as histories can be very long
+    Deque<RevWalk.Commit> pending = new ArrayDeque<RevWalk.Commit>();
+    pending.push(commit);
+    while (!pending.isEmpty()) {
+      RevWalk.Commit top = pending.peek();
+      int generation = 0;
+      boolean ready = true;
+      for (RevWalk.Commit parent : top.parents) {
+        if (parent.generation == RevWalk.GENERATION_INFINITY) {
+          pending.push(parent);
+          ready = false;
+        } else {
+          generation = Math.max(generation, parent.generation);
+        }
+      }
+      if (ready) {
+        top.generation = Math.min(generation + 1, GENERATION_MAX);
+        pending.pop();
+      }
+    }
+  }
+
+  private static int position(Map<ObjectId, Integer> positions, RevWalk.Commit commit) throws IOException {
+    Integer position = positions.get(commit.id);
+    if (position == null) {
+      throw new IOException("Parent " + commit.id + " is missing from the commit-graph");
+    }
+    return position;
+  }
+}
@@ -0,0 +1,280 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Long-running process that runs commands for clients, so the JVM starts once
+ * instead of once per command and the JIT-compiled code, mapped packs and object
+ * caches stay warm between commands.
+ *
+ * The daemon listens on a Unix domain socket at .git/daemon.sock. A client sends
+ * its arguments and working directory, then streams its stdin; the daemon streams
+ * back stdout and stderr and finally the exit status. Everything after the request
+ * header travels in frames: a channel byte, a 4-byte length and the data.
+ *
+ * Commands run one at a time, because they use System.out and System.in.
+ */
+class Daemon {
+  private static final String SOCKET_NAME = "daemon.sock";
+
+  // Frame channels
+  private static final int STDIN = 0;
+  private static final int STDOUT = 1;
+  private static final int STDERR = 2;
+  private static final int EXIT = 3;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private Daemon() {
+  }
+
+  /**
+   * Serves commands on the socket in the given .git directory until the process is killed.
+   */
+  static void serve(File gitDir) throws IOException {
+    Path socketPath = new File(gitDir, SOCKET_NAME).toPath();
+    Files.deleteIfExists(socketPath);  // Left behind by a daemon that was killed
+
+    try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socketPath));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> socketPath.toFile().delete()));
+
+      ObjectDatabase.keepOpen();
+      System.err.println("Daemon listening on " + socketPath);
+
+      while (true) {
+        try (SocketChannel client = server.accept()) {
+          handle(client);
+        } catch (IOException e) {
+          System.err.println("Daemon: lost client: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Connects to the daemon serving the given .git directory.
+   * Returns null if there is none, or the socket is left over from one that is gone.
+   */
+  static SocketChannel connect(File gitDir) {
+    File socket = new File(gitDir, SOCKET_NAME);
+    if (!socket.exists()) {
+      return null;
+    }
+    try {
+      return SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Runs a command in the daemon: sends the arguments, the working directory and
+   * this process's stdin, and copies what comes back to this process's stdout and stderr.
+   * Returns the command's exit status.
+   */
+  static int forward(SocketChannel channel, String[] args, File workDir) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+
+    // Step 1: Send the request header
+    out.writeInt(args.length);
+    for (String arg : args) {
+      out.writeUTF(arg);
+    }
+    out.writeUTF(workDir.getAbsolutePath());
+    out.flush();
+
+    // Step 2: Pump stdin in the background; it ends with an empty frame
+    Thread stdinPump = new Thread(() -> {
+      try (FrameOutputStream stdin = new FrameOutputStream(out, STDIN)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = System.in.read(buffer)) > 0) {
+          stdin.write(buffer, 0, count);
+          stdin.flush();
+        }
+      } catch (IOException e) {
+        // The command finished without reading all of stdin
+      }
+    });
+    stdinPump.setDaemon(true);
+    stdinPump.start();
+
+    // Step 3: Copy output until the exit status arrives
+    byte[] buffer = new byte[BUFFER_SIZE];
+    while (true) {
+      int type = in.readUnsignedByte();
+      int length = in.readInt();
+      if (type == EXIT) {
+        System.out.flush();
+        System.err.flush();
+        return in.readInt();
+      }
+
+      PrintStream target = type == STDERR ? System.err : System.out;
+      while (length > 0) {
+        int count = in.read(buffer, 0, Math.min(length, buffer.length));
+        if (count < 0) {
+          throw new IOException("Daemon closed the connection");
+        }
+        target.write(buffer, 0, count);
+        length -= count;
+      }
+      target.flush();
+    }
+  }
+
+  /**
+   * Runs one client's command with System.in, System.out and System.err pointed at the socket.
+   */
+  private static void handle(SocketChannel client) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client), BUFFER_SIZE));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client), BUFFER_SIZE));
+
+    String[] args = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = in.readUTF();
+    }
+    File workDir = new File(in.readUTF());
+
+    PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT), BUFFER_SIZE));
+    PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR), true);
+
+    InputStream originalIn = System.in;
+    PrintStream originalOut = System.out;
+    PrintStream originalErr = System.err;
+    System.setIn(new FrameInputStream(in));
+    System.setOut(stdout);
+    System.setErr(stderr);
+
+    int status;
+    try {
+      status = args.length > 0 && !args[0].equals("daemon") ? Main.run(args, workDir) : 1;
+    } catch (Throwable t) {
+      t.printStackTrace();
+      status = 1;
+    } finally {
+      stdout.flush();
+      stderr.flush();
+      System.setIn(originalIn);
+      System.setOut(originalOut);
+      System.setErr(originalErr);
+    }
+
+    synchronized (out) {
+      out.writeByte(EXIT);
+      out.writeInt(4);
+      out.writeInt(status);
+      out.flush();
+    }
+  }
+
+  /**
+   * Writes everything as frames of one channel. An empty frame is sent on close.
+   */
+  private static class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final int channel;
+
+    FrameOutputStream(DataOutputStream out, int channel) {
+      this.out = out;
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      synchronized (out) {
+        out.writeByte(channel);
+        out.writeInt(len);
+        out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (out) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (out) {
+        out.writeByte(channel);
+        out.writeInt(0);
+        out.flush();
+      }
+    }
+  }
+
+  /**
+   * Reads the client's stdin back out of its frames. An empty frame means end of input.
+   */
+  private static class FrameInputStream extends InputStream {
+    private final DataInputStream in;
+    private int remaining = 0;
+    private boolean finished = false;
+
+    FrameInputStream(DataInputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (remaining == 0) {
+        if (finished) {
+          return -1;
+        }
+        int type = in.readUnsignedByte();
+        remaining = in.readInt();
+        if (type != STDIN) {
+          throw new IOException("Unexpected frame from client: " + type);
+        }
+        finished = remaining == 0;
+      }
+
+      int count = in.read(b, off, Math.min(len, remaining));
+      if (count < 0) {
+        throw new IOException("Client closed its stdin mid-frame");
+      }
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return Math.min(remaining, in.available());
+    }
+  }
+}
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Git's delta format: a base size, a result size, then copy and insert instructions.
+ *
+ * Results are built in a buffer of exactly the result size, and every instruction is
+ * checked against the base, the delta and the result, so a corrupt delta fails with an
+ * IOException where it goes wrong instead of producing a wrong object.
+ */
+class Delta {
+  private Delta() {
+  }
+
+  /**
+   * Reads the result size from the start of a delta.
+   * Only the two size headers are needed, so a 20-byte prefix of the delta is enough.
+   */
+  static long resultSize(byte[] delta) throws IOException {
+    return readSize(delta, skipSize(delta, 0));
+  }
+
+  /**
+   * Applies a delta to a base object.
+   */
+  static byte[] apply(byte[] base, byte[] delta) throws IOException {
+    byte[] result = new byte[checkedResultSize(delta)];
+    apply(base, delta, result, 0);
+    return result;
+  }
+
+  /**
+   * Applies a delta to a base object, writing the result into out at outOffset.
+   * out must have room for resultSize(delta) bytes there. Returns the result size.
+   */
+  static int apply(byte[] base, byte[] delta, byte[] out, int outOffset) throws IOException {
+    checkBaseSize(delta, base.length);
+    int resultSize = checkedResultSize(delta);
+    if (outOffset < 0 || out.length - outOffset < resultSize) {
+      throw new IllegalArgumentException("No room for a " + resultSize + "-byte result at " + outOffset
+          + " in a " + out.length + "-byte buffer");
+    }
+
+    int position = skipSize(delta, skipSize(delta, 0));
+    int written = outOffset;
+    int end = outOffset + resultSize;
+
+    while (position < delta.length) {
+      int cmd = delta[position++] & 0xFF;
+
+      if ((cmd & 0x80) != 0) {
+        // Copy from base
+        long copy = readCopy(delta, position, cmd);
+        position += Integer.bitCount(cmd & 0x7F);
+        long copyOffset = copy >>> 24;
+        int copySize = (int) (copy & 0xFFFFFF);
+
+        if (copyOffset + copySize > base.length || copySize > end - written) {
+          throw corrupt("copy of " + copySize + " bytes from " + copyOffset + " out of bounds", position);
+        }
+        System.arraycopy(base, (int) copyOffset, out, written, copySize);
+        written += copySize;
+
+      } else if (cmd > 0) {
+        // Insert new data
+        if (cmd > delta.length - position || cmd > end - written) {
+          throw corrupt("insert of " + cmd + " bytes out of bounds", position);
+        }
+        System.arraycopy(delta, position, out, written, cmd);
+        position += cmd;
+        written += cmd;
+
+      } else {
+        throw corrupt("reserved instruction 0", position);
+      }
+    }
+
+    if (written != end) {
+      throw new IOException("Corrupt delta: built " + (written - outOffset) + " of " + resultSize + " bytes");
+    }
+    return resultSize;
+  }
+
+  /**
+   * Applies a chain of deltas to base: deltas.get(0) is against base, and every
+   * following delta is against the result of the one before it.
+   *
+   * No intermediate version is built. The chain's instructions are first composed,
+   * from the bottom up, into a single list of pieces of the final object, each either
+   * a range of base or a run of literal bytes in one of the deltas; then the object is
+   * assembled from those in one pass.
+   */
+  static byte[] applyChain(byte[] base, List<byte[]> deltas) throws IOException {
+    Pieces pieces = new Pieces(1);
+    pieces.add(-1, 0, base.length);
+    for (int i = 0; i < deltas.size(); i++) {
+      pieces = pieces.compose(deltas.get(i), i);
+    }
+
+    byte[] result = new byte[pieces.size];
+    for (int i = 0; i < pieces.count; i++) {
+      byte[] source = pieces.source[i] < 0 ? base : deltas.get(pieces.source[i]);
+      System.arraycopy(source, pieces.offset[i], result, pieces.start[i], pieces.length[i]);
+    }
+    return result;
+  }
+
+  /**
+   * An object described as consecutive pieces, each copied from the chain's base
+   * (source -1) or from the literal data of one of its deltas (source = its index).
+   */
+  private static final class Pieces {
+    int count;
+    int size;        // Total length of the object
+    int[] start;     // Where each piece starts in the object
+    int[] length;
+    int[] source;
+    int[] offset;    // Where each piece starts in its source
+
+    Pieces(int capacity) {
+      start = new int[capacity];
+      length = new int[capacity];
+      source = new int[capacity];
+      offset = new int[capacity];
+    }
+
+    /**
+     * Appends a piece, extending the last one instead when it continues it.
+     */
+    void add(int pieceSource, int pieceOffset, int pieceLength) {
+      if (pieceLength == 0) {
+        return;
+      }
+      int last = count - 1;
+      if (last >= 0 && source[last] == pieceSource && offset[last] + length[last] == pieceOffset) {
+        length[last] += pieceLength;
+        size += pieceLength;
+        return;
+      }
+
+      if (count == start.length) {
+        int capacity = count * 2;
+        start = Arrays.copyOf(start, capacity);
+        length = Arrays.copyOf(length, capacity);
+        source = Arrays.copyOf(source, capacity);
+        offset = Arrays.copyOf(offset, capacity);
+      }
+      start[count] = size;
+      length[count] = pieceLength;
+      source[count] = pieceSource;
+      offset[count] = pieceOffset;
+      count++;
+      size += pieceLength;
+    }
+
+    /**
+     * Returns the piece that holds the given position of the object.
+     */
+    int find(int position) {
+      int low = 0;
+      int high = count - 1;
+      while (low < high) {
+        int middle = (low + high + 1) >>> 1;
+        if (start[middle] <= position) {
+          low = middle;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Returns the pieces of what the given delta (the chain's index-th) builds on top of
+     * this object: its inserts become pieces of the delta itself, and its copies are
+     * mapped through to the pieces of this object they cover.
+     */
+    Pieces compose(byte[] delta, int index) throws IOException {
+      checkBaseSize(delta, size);
+      int resultSize = checkedResultSize(delta);
+      int position = skipSize(delta, skipSize(delta, 0));
+      Pieces result = new Pieces(Math.max(16, count));
+
+      while (position < delta.length) {
+        int cmd = delta[position++] & 0xFF;
+
+        if ((cmd & 0x80) != 0) {
+          long copy = readCopy(delta, position, cmd);
+          position += Integer.bitCount(cmd & 0x7F);
+          long copyOffset = copy >>> 24;
+          int copySize = (int) (copy & 0xFFFFFF);
+
+          if (copyOffset + copySize > size || copySize > resultSize - result.size) {
+            throw corrupt("copy of " + copySize + " bytes from " + copyOffset + " out of bounds", position);
+          }
+          int at = (int) copyOffset;
+          int remaining = copySize;
+          for (int i = find(at); remaining > 0; i++) {
+            int into = at - start[i];
+            int take = Math.min(remaining, length[i] - into);
+            result.add(source[i], offset[i] + into, take);
+            at += take;
+            remaining -= take;
+          }
+
+        } else if (cmd > 0) {
+          if (cmd > delta.length - position || cmd > resultSize - result.size) {
+            throw corrupt("insert of " + cmd + " bytes out of bounds", position);
+          }
+          result.add(index, position, cmd);
+          position += cmd;
+
+        } else {
+          throw corrupt("reserved instruction 0", position);
+        }
+      }
+
+      if (result.size != resultSize) {
+        throw new IOException("Corrupt delta: built " + result.size + " of " + resultSize + " bytes");
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Reads the arguments of a copy instruction: the offset in the high bits and the
+   * size (0 meaning 0x10000) in the low 24.
+   */
+  private static long readCopy(byte[] delta, int position, int cmd) throws IOException {
+    if (position + Integer.bitCount(cmd & 0x7F) > delta.length) {
+      throw corrupt("truncated copy instruction", position);
+    }
+
+    long copyOffset = 0;
+    int copySize = 0;
+
+    if ((cmd & 0x01) != 0) copyOffset |= (delta[position++] & 0xFF);
+    if ((cmd & 0x02) != 0) copyOffset |= (delta[position++] & 0xFF) << 8;
+    if ((cmd & 0x04) != 0) copyOffset |= (delta[position++] & 0xFF) << 16;
+    if ((cmd & 0x08) != 0) copyOffset |= (long) (delta[position++] & 0xFF) << 24;
+
+    if ((cmd & 0x10) != 0) copySize |= (delta[position++] & 0xFF);
+    if ((cmd & 0x20) != 0) copySize |= (delta[position++] & 0xFF) << 8;
+    if ((cmd & 0x40) != 0) copySize |= (delta[position++] & 0xFF) << 16;
+
+    if (copySize == 0) copySize = 0x10000;
+
+    return (copyOffset << 24) | copySize;
+  }
+
+  private static void checkBaseSize(byte[] delta, long baseSize) throws IOException {
+    long expected = readSize(delta, 0);
+    if (expected != baseSize) {
+      throw new IOException("Corrupt delta: made for a " + expected + "-byte base, got " + baseSize + " bytes");
+    }
+  }
+
+  private static int checkedResultSize(byte[] delta) throws IOException {
+    long resultSize = resultSize(delta);
+    if (resultSize > Integer.MAX_VALUE - 8) {
+      throw new IOException("Delta result too large: " + resultSize + " bytes");
+    }
+    return (int) resultSize;
+  }
+
+  /**
+   * Reads a size varint (7 bits per byte, least significant first) starting at position.
+   */
+  private static long readSize(byte[] delta, int position) throws IOException {
+    long size = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (position >= delta.length || shift > 56) {
+        throw corrupt("bad size header", position);
+      }
+      b = delta[position++] & 0xFF;
+      size |= ((long)(b & 0x7F)) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return size;
+  }
+
+  /**
+   * Returns the position after the size varint starting at position.
+   */
+  private static int skipSize(byte[] delta, int position) throws IOException {
+    do {
+      if (position >= delta.length) {
+        throw corrupt("bad size header", position);
+      }
+    } while ((delta[position++] & 0x80) != 0);
+    return position;
+  }
+
+  private static IOException corrupt(String problem, int position) {
+    return new IOException("Corrupt delta: " + problem + " at " + position);
+  }
+}
@@ -0,0 +1,77 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of resolved pack objects, keyed by their offset in the pack.
+ * Delta chains are resolved from their base, so remembering bases means each
+ * one is inflated about once instead of once per delta built on top of it.
+ * The cache is bounded by the total size of the cached data.
+ */
+class DeltaBaseCache {
+  private final long maxBytes;
+  private long currentBytes = 0;
+
+  // Access-ordered, so the first entry is always the least recently used one
+  private final LinkedHashMap<Long, GitObject> entries = new LinkedHashMap<Long, GitObject>(16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+
+  DeltaBaseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the object at the given offset, or null if it isn't cached.
+   */
+  synchronized GitObject get(long offset) {
+    GitObject entry = entries.get(offset);
+    if (entry != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return entry;
+  }
+
+  /**
+   * Caches an object and evicts the least recently used ones until the cache fits again.
+   * Returns the cached entry.
+   */
+  synchronized GitObject put(long offset, String type, byte[] data) {
+    GitObject entry = new GitObject(type, data);
+    if (data.length > maxBytes) {
+      return entry;  // Would evict everything else, not worth it
+    }
+
+    GitObject previous = entries.put(offset, entry);
+    if (previous != null) {
+      currentBytes -= previous.data.length;
+    }
+    currentBytes += data.length;
+
+    Iterator<Map.Entry<Long, GitObject>> it = entries.entrySet().iterator();
+    while (currentBytes > maxBytes && it.hasNext()) {
+      currentBytes -= it.next().getValue().data.length;
+      it.remove();
+    }
+    return entry;
+  }
+
+  /**
+   * Drops every cached object. The hit and miss counters are kept.
+   */
+  synchronized void clear() {
+    entries.clear();
+    currentBytes = 0;
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+}
@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/**
+ * Creates deltas against one base, in git's delta format (see Delta).
+ *
+ * The base is indexed once by a hash of every 16-byte block, so it can serve as the
+ * base for any number of targets. For each target a rolling hash of the next 16 bytes
+ * is looked up in the index; a hit is verified and extended as far as the bytes match
+ * in both directions and becomes a copy, and bytes without a match become inserts.
+ */
+class DeltaIndex {
+  private static final int BLOCK = 16;
+
+  // Candidates checked per lookup, so long runs of identical blocks stay cheap
+  private static final int CHAIN_LIMIT = 64;
+
+  // Largest copy per instruction, the most that every git version accepts
+  private static final int MAX_COPY = 0x10000;
+
+  private static final int MULTIPLIER = 0x01000193;
+  private static final int MULTIPLIER_POW_BLOCK;
+
+  static {
+    int power = 1;
+    for (int i = 0; i < BLOCK - 1; i++) {
+      power *= MULTIPLIER;
+    }
+    MULTIPLIER_POW_BLOCK = power;
+  }
+
+  private final byte[] base;
+  private final int[] heads;   // Per bucket, the last block with that hash, or -1
+  private final int[] chain;   // Per block, the previous block in the same bucket, or -1
+  private final int shift;
+
+  DeltaIndex(byte[] base) {
+    this.base = base;
+    int blocks = base.length / BLOCK;
+    int bits = 4;
+    while ((1 << bits) < blocks && bits < 30) {
+      bits++;
+    }
+    this.shift = 32 - bits;
+    this.heads = new int[1 << bits];
+    this.chain = new int[blocks];
+    Arrays.fill(heads, -1);
+
+    // Earlier blocks end up first in each bucket
+    for (int block = blocks - 1; block >= 0; block--) {
+      int bucket = bucket(hash(base, block * BLOCK));
+      chain[block] = heads[bucket];
+      heads[bucket] = block;
+    }
+  }
+
+  /**
+   * Creates the delta that turns the base into target, or returns null if it would
+   * be larger than maxSize bytes.
+   */
+  byte[] create(byte[] target, int maxSize) {
+    Output out = new Output(maxSize);
+    out.writeSize(base.length);
+    out.writeSize(target.length);
+
+    int position = 0;
+    int insertStart = 0;
+    if (chain.length > 0 && target.length >= BLOCK) {
+      int hash = hash(target, 0);
+      while (position + BLOCK <= target.length && !out.full()) {
+        int bestLength = 0;
+        int bestOffset = 0;
+        int checked = 0;
+        for (int block = heads[bucket(hash)]; block >= 0 && checked < CHAIN_LIMIT; block = chain[block]) {
+          checked++;
+          int offset = block * BLOCK;
+          int length = matchLength(offset, target, position);
+          if (length > bestLength) {
+            bestLength = length;
+            bestOffset = offset;
+          }
+        }
+
+        if (bestLength >= BLOCK) {
+          // Take matching bytes just before the match away from the pending insert
+          int back = 0;
+          while (position - back > insertStart && bestOffset - back > 0
+              && base[bestOffset - back - 1] == target[position - back - 1]) {
+            back++;
+          }
+          out.insert(target, insertStart, position - back - insertStart);
+          out.copy(bestOffset - back, bestLength + back);
+          position += bestLength;
+          insertStart = position;
+          if (position + BLOCK <= target.length) {
+            hash = hash(target, position);
+          }
+        } else {
+          if (position + BLOCK < target.length) {
+            hash = (hash - target[position] * MULTIPLIER_POW_BLOCK) * MULTIPLIER + target[position + BLOCK];
+          }
+          position++;
+        }
+      }
+    }
+    out.insert(target, insertStart, target.length - insertStart);
+    return out.full() ? null : out.toByteArray();
+  }
+
+  private int matchLength(int offset, byte[] target, int position) {
+    int mismatch = Arrays.mismatch(base, offset, base.length, target, position, target.length);
+    return mismatch >= 0 ? mismatch : Math.min(base.length - offset, target.length - position);
+  }
+
+  private int bucket(int hash) {
+    return (hash * 0x9E3779B1) >>> shift;
+  }
+
+  private static int hash(byte[] data, int offset) {
+    int hash = 0;
+    for (int i = offset; i < offset + BLOCK; i++) {
+      hash = hash * MULTIPLIER + data[i];
+    }
+    return hash;
+  }
+
+  /**
+   * The delta being written, which gives up once it would grow past its limit.
+   */
+  private static final class Output {
+    private final int limit;
+    private byte[] buffer;
+    private int size;
+    private final byte[] arguments = new byte[7];
+
+    Output(int limit) {
+      this.limit = limit;
+      this.buffer = new byte[Math.max(1, Math.min(limit, 4096))];
+    }
+
+    boolean full() {
+      return size > limit;
+    }
+
+    void writeSize(long value) {
+      int count = 0;
+      while (value >= 0x80) {
+        arguments[count++] = (byte) (value | 0x80);
+        value >>>= 7;
+      }
+      arguments[count++] = (byte) value;
+      write(arguments, 0, count);
+    }
+
+    void copy(int offset, int length) {
+      while (length > 0 && !full()) {
+        int chunk = Math.min(length, MAX_COPY);
+        int command = 0x80;
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+          int b = (offset >>> (8 * i)) & 0xFF;
+          if (b != 0) {
+            command |= 1 << i;
+            arguments[count++] = (byte) b;
+          }
+        }
+        // A size of 0x10000 is written as no size bytes at all
+        int encodedSize = chunk == MAX_COPY ? 0 : chunk;
+        for (int i = 0; i < 3; i++) {
+          int b = (encodedSize >>> (8 * i)) & 0xFF;
+          if (b != 0) {
+            command |= 0x10 << i;
+            arguments[count++] = (byte) b;
+          }
+        }
+        if (reserve(1 + count)) {
+          buffer[size++] = (byte) command;
+          System.arraycopy(arguments, 0, buffer, size, count);
+          size += count;
+        }
+        offset += chunk;
+        length -= chunk;
+      }
+    }
+
+    void insert(byte[] data, int offset, int length) {
+      while (length > 0 && !full()) {
+        int chunk = Math.min(length, 127);
+        if (reserve(1 + chunk)) {
+          buffer[size++] = (byte) chunk;
+          System.arraycopy(data, offset, buffer, size, chunk);
+          size += chunk;
+        }
+        offset += chunk;
+        length -= chunk;
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+
+    private void write(byte[] data, int offset, int count) {
+      if (reserve(count)) {
+        System.arraycopy(data, offset, buffer, size, count);
+        size += count;
+      }
+    }
+
+    /**
+     * Makes room for count more bytes. Returns false, and marks the delta as too
+     * large, if they would take it past the limit.
+     */
+    private boolean reserve(int count) {
+      if (size + count > limit) {
+        size = limit + 1;
+        return false;
+      }
+      if (size + count > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, size + count), limit));
+      }
+      return true;
+    }
+  }
+}
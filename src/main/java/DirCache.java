@@ -0,0 +1,415 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The .git/index file (dircache), version 2, with the cache-tree ("TREE") extension.
+ *
+ * Each entry records a path, its blob id and the stat data the file had when it was
+ * hashed, so a file whose stat data didn't change doesn't need to be read again.
+ * The cache-tree records the tree id of every directory, so an unchanged directory
+ * doesn't need its tree object built again either.
+ * The file layout is git's, so stock git reads what is written here and vice versa.
+ */
+class DirCache {
+  private static final int SIGNATURE = 0x44495243;  // "DIRC"
+  private static final int VERSION = 2;
+  private static final int TREE_EXTENSION = 0x54524545;  // "TREE"
+
+  /**
+   * One file: its stat data, mode, blob id and path relative to the work tree.
+   */
+  static class Entry {
+    int ctimeSeconds;
+    int ctimeNanos;
+    int mtimeSeconds;
+    int mtimeNanos;
+    int dev;
+    int ino;
+    int mode;
+    int uid;
+    int gid;
+    int size;
+    final byte[] id = new byte[20];
+    String path;
+
+    /**
+     * Creates an entry for a file from its current stat data.
+     */
+    static Entry fromFile(String path, Path file, int mode, byte[] id) throws IOException {
+      Entry entry = new Entry();
+      entry.path = path;
+      entry.mode = mode;
+      System.arraycopy(id, 0, entry.id, 0, 20);
+      entry.setStat(file);
+      return entry;
+    }
+
+    /**
+     * Checks whether the file's stat data is still what this entry recorded.
+     */
+    boolean matches(Path file) throws IOException {
+      Entry current = new Entry();
+      current.setStat(file);
+      return current.mtimeSeconds == mtimeSeconds && current.mtimeNanos == mtimeNanos
+          && current.ctimeSeconds == ctimeSeconds && current.ctimeNanos == ctimeNanos
+          && current.ino == ino && current.dev == dev && current.size == size
+          && current.uid == uid && current.gid == gid;
+    }
+
+    /**
+     * Fills in the stat fields, truncated to 32 bits like git does.
+     * Where the platform has no unix attributes, only the times and size are kept.
+     */
+    private void setStat(Path file) throws IOException {
+      Map<String, Object> attributes;
+      try {
+        attributes = Files.readAttributes(file, "unix:dev,ino,uid,gid,size,lastModifiedTime,ctime");
+      } catch (UnsupportedOperationException e) {
+        BasicFileAttributes basic = Files.readAttributes(file, BasicFileAttributes.class);
+        attributes = new HashMap<String, Object>();
+        attributes.put("size", basic.size());
+        attributes.put("lastModifiedTime", basic.lastModifiedTime());
+        attributes.put("ctime", basic.creationTime());
+      }
+
+      FileTime mtime = (FileTime) attributes.get("lastModifiedTime");
+      FileTime ctime = (FileTime) attributes.get("ctime");
+      mtimeSeconds = (int) mtime.toInstant().getEpochSecond();
+      mtimeNanos = mtime.toInstant().getNano();
+      ctimeSeconds = (int) ctime.toInstant().getEpochSecond();
+      ctimeNanos = ctime.toInstant().getNano();
+      size = (int) (long) (Long) attributes.get("size");
+      dev = (int) toLong(attributes.get("dev"));
+      ino = (int) toLong(attributes.get("ino"));
+      uid = (int) toLong(attributes.get("uid"));
+      gid = (int) toLong(attributes.get("gid"));
+    }
+
+    private static long toLong(Object value) {
+      return value == null ? 0 : ((Number) value).longValue();
+    }
+  }
+
+  /**
+   * One directory of the cache-tree: how many index entries it covers, its tree id
+   * (only when entryCount isn't -1) and its subdirectories in tree order.
+   */
+  static class Tree {
+    final String name;
+    int entryCount = -1;
+    byte[] id;
+    final List<Tree> children = new ArrayList<Tree>();
+
+    Tree(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Returns the subdirectory with the given name, or null.
+     */
+    Tree child(String childName) {
+      for (Tree child : children) {
+        if (child.name.equals(childName)) {
+          return child;
+        }
+      }
+      return null;
+    }
+
+    boolean isValid() {
+      return entryCount >= 0 && id != null;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final Map<String, Entry> byPath = new HashMap<String, Entry>();
+  private Tree tree;
+
+  // When the index file was last written; files modified at or after it are "racily clean"
+  private long timestampNanos = Long.MIN_VALUE;
+
+  /**
+   * Reads an index file. A missing file gives an empty index, and so does one in a
+   * format this can't read (version 3 or 4, or a required extension such as "link").
+   * The index is only a cache here: everything gets hashed again and the index is
+   * rewritten as version 2.
+   */
+  static DirCache read(File file) throws IOException {
+    DirCache cache = new DirCache();
+    if (!file.isFile()) {
+      return cache;
+    }
+    cache.timestampNanos = toNanos(Files.getLastModifiedTime(file.toPath()));
+
+    byte[] data = Files.readAllBytes(file.toPath());
+    if (data.length < 32 || !Arrays.equals(sha1(data, data.length - 20), Arrays.copyOfRange(data, data.length - 20, data.length))) {
+      throw new IOException("Index file is corrupt: " + file);
+    }
+
+    ByteBuffer in = ByteBuffer.wrap(data, 0, data.length - 20);
+    int signature = in.getInt();
+    int version = in.getInt();
+    if (signature != SIGNATURE) {
+      throw new IOException("Index file is corrupt: " + file);
+    }
+    if (version != VERSION) {
+      System.err.println("Ignoring index version " + version + ", it will be rewritten as version " + VERSION);
+      return new DirCache();
+    }
+
+    // Step 1: Entries
+    int count = in.getInt();
+    for (int i = 0; i < count; i++) {
+      int start = in.position();
+      Entry entry = new Entry();
+      entry.ctimeSeconds = in.getInt();
+      entry.ctimeNanos = in.getInt();
+      entry.mtimeSeconds = in.getInt();
+      entry.mtimeNanos = in.getInt();
+      entry.dev = in.getInt();
+      entry.ino = in.getInt();
+      entry.mode = in.getInt();
+      entry.uid = in.getInt();
+      entry.gid = in.getInt();
+      entry.size = in.getInt();
+      in.get(entry.id);
+      in.getShort();  // Flags: name length and stage, not needed
+
+      int pathStart = in.position();
+      int pathEnd = pathStart;
+      while (data[pathEnd] != 0) {
+        pathEnd++;
+      }
+      entry.path = new String(data, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+
+      // Entries are padded with 1 to 8 null bytes to a multiple of 8
+      int length = pathEnd - start;
+      in.position(start + ((length + 8) & ~7));
+      cache.add(entry);
+    }
+
+    // Step 2: Extensions; only the cache-tree is used
+    while (in.remaining() >= 8) {
+      int signatureBytes = in.getInt();
+      int size = in.getInt();
+      int end = in.position() + size;
+      if (signatureBytes == TREE_EXTENSION) {
+        int[] position = {in.position()};
+        cache.tree = readTree(data, position);
+      } else if ((signatureBytes >>> 24) < 'A' || (signatureBytes >>> 24) > 'Z') {
+        // Lowercase means required: without it the entries may be incomplete
+        System.err.println("Ignoring index with unsupported extension "
+            + new String(ByteBuffer.allocate(4).putInt(signatureBytes).array(), StandardCharsets.US_ASCII)
+            + ", it will be rewritten");
+        return new DirCache();
+      }
+      in.position(end);
+    }
+    return cache;
+  }
+
+  /**
+   * Parses one cache-tree node ("<name>\0<entry count> <subtree count>\n<id>") and its subtrees.
+   */
+  private static Tree readTree(byte[] data, int[] position) {
+    int p = position[0];
+    int nameStart = p;
+    while (data[p] != 0) {
+      p++;
+    }
+    Tree node = new Tree(new String(data, nameStart, p - nameStart, StandardCharsets.UTF_8));
+    p++;
+
+    int countStart = p;
+    while (data[p] != ' ') {
+      p++;
+    }
+    node.entryCount = Integer.parseInt(new String(data, countStart, p - countStart, StandardCharsets.US_ASCII));
+    p++;
+
+    int subtreesStart = p;
+    while (data[p] != '\n') {
+      p++;
+    }
+    int subtrees = Integer.parseInt(new String(data, subtreesStart, p - subtreesStart, StandardCharsets.US_ASCII));
+    p++;
+
+    // Invalidated nodes have no id
+    if (node.entryCount >= 0) {
+      node.id = Arrays.copyOfRange(data, p, p + 20);
+      p += 20;
+    }
+
+    position[0] = p;
+    for (int i = 0; i < subtrees; i++) {
+      node.children.add(readTree(data, position));
+    }
+    return node;
+  }
+
+  /**
+   * Appends an entry. Entries must be added in index order (sorted by path bytes).
+   */
+  void add(Entry entry) {
+    entries.add(entry);
+    byPath.put(entry.path, entry);
+  }
+
+  /**
+   * Returns the entry for a path, or null.
+   */
+  Entry get(String path) {
+    return byPath.get(path);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Checks whether this index holds exactly the entries (the same instances) and the
+   * same root tree id as another, so writing it would change nothing.
+   */
+  boolean sameAs(DirCache other) {
+    if (entries.size() != other.entries.size() || tree == null || other.tree == null
+        || !Arrays.equals(tree.id, other.tree.id)) {
+      return false;
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i) != other.entries.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the root of the cache-tree, or null if the index has none.
+   */
+  Tree tree() {
+    return tree;
+  }
+
+  void setTree(Tree tree) {
+    this.tree = tree;
+  }
+
+  /**
+   * Tells whether the entry's file changed so recently that a write in the same
+   * timestamp granularity could have gone unnoticed; such entries must be rehashed.
+   */
+  boolean isRacilyClean(Entry entry) {
+    long mtime = entry.mtimeSeconds * 1_000_000_000L + entry.mtimeNanos;
+    return mtime >= timestampNanos;
+  }
+
+  /**
+   * Writes the index through index.lock, which is renamed over the index when complete.
+   */
+  void write(File file) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buffer);
+
+    out.writeInt(SIGNATURE);
+    out.writeInt(VERSION);
+    out.writeInt(entries.size());
+    for (Entry entry : entries) {
+      out.writeInt(entry.ctimeSeconds);
+      out.writeInt(entry.ctimeNanos);
+      out.writeInt(entry.mtimeSeconds);
+      out.writeInt(entry.mtimeNanos);
+      out.writeInt(entry.dev);
+      out.writeInt(entry.ino);
+      out.writeInt(entry.mode);
+      out.writeInt(entry.uid);
+      out.writeInt(entry.gid);
+      out.writeInt(entry.size);
+      out.write(entry.id);
+
+      byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+      out.writeShort(Math.min(path.length, 0xFFF));
+      out.write(path);
+
+      // 62 bytes of fields plus the path, padded with 1 to 8 null bytes to a multiple of 8
+      int length = 62 + path.length;
+      out.write(new byte[((length + 8) & ~7) - length]);
+    }
+
+    if (tree != null) {
+      ByteArrayOutputStream extension = new ByteArrayOutputStream();
+      writeTree(tree, extension);
+      out.writeInt(TREE_EXTENSION);
+      out.writeInt(extension.size());
+      extension.writeTo(out);
+    }
+
+    // The file ends with the SHA-1 of everything before it
+    byte[] content = buffer.toByteArray();
+
+    // index.lock is created exclusively, so two writers can't interleave. Once it's
+    // renamed over the index, a lock at that path belongs to someone else
+    File lock = new File(file.getParentFile(), file.getName() + ".lock");
+    OutputStream lockOut;
+    try {
+      lockOut = Files.newOutputStream(lock.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    } catch (FileAlreadyExistsException e) {
+      throw new IOException("Unable to create '" + lock + "': index.lock exists."
+          + " Another git process seems to be running; if not, remove the file and try again");
+    }
+    try {
+      try (lockOut) {
+        lockOut.write(content);
+        lockOut.write(sha1(content, content.length));
+      }
+      Files.move(lock.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (Exception e) {
+      lock.delete();
+      throw e;
+    }
+  }
+
+  private static void writeTree(Tree node, ByteArrayOutputStream out) throws IOException {
+    out.write(node.name.getBytes(StandardCharsets.UTF_8));
+    out.write(0);
+    out.write((node.entryCount + " " + node.children.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+    if (node.entryCount >= 0) {
+      out.write(node.id);
+    }
+    for (Tree child : node.children) {
+      writeTree(child, out);
+    }
+  }
+
+  private static long toNanos(FileTime time) {
+    return time.toInstant().getEpochSecond() * 1_000_000_000L + time.toInstant().getNano();
+  }
+
+  private static byte[] sha1(byte[] data, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(data, 0, length);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
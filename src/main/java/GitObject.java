@@ -0,0 +1,12 @@
+/**
+ * An object's type ("commit", "tree", "blob" or "tag") and its content, without the header.
+ */
+class GitObject {
+  final String type;
+  final byte[] data;
+
+  GitObject(String type, byte[] data) {
+    this.type = type;
+    this.data = data;
+  }
+}
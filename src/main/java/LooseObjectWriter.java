@@ -0,0 +1,216 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes loose objects to .git/objects/<first2chars>/<rest>.
+ *
+ * Objects that already exist are skipped without deflating anything. New ones are
+ * deflated into a temp file and renamed into place, so a crash never leaves a
+ * truncated object behind. Which of the 256 fan-out directories exist is remembered,
+ * so mkdirs isn't called for every object.
+ *
+ * How hard it tries to make objects survive a power loss depends on the durability:
+ * NONE leaves it to the OS, OBJECT fsyncs every object and its directory before
+ * renaming the next one, and BATCH keeps new objects in their temp files until
+ * close(), then fsyncs them all, renames them and fsyncs each touched directory once.
+ *
+ * One writer can be shared by several threads.
+ */
+class LooseObjectWriter implements Closeable {
+  enum Durability {
+    NONE, OBJECT, BATCH;
+
+    /**
+     * Reads the durability from the GIT_FSYNC environment variable
+     * ("none", "object" or "batch"); the default is NONE.
+     */
+    static Durability fromEnvironment() {
+      String value = System.getenv("GIT_FSYNC");
+      if (value == null || value.isEmpty()) {
+        return NONE;
+      }
+      try {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Bad GIT_FSYNC value '" + value
+            + "': expected none, object or batch");
+      }
+    }
+  }
+
+  private final File objectsDir;
+  private final Durability durability;
+  private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+
+  // Fan-out directories known to exist, by their first byte. Racing threads at
+  // worst both call mkdirs, which is harmless.
+  private final boolean[] knownDirs = new boolean[256];
+
+  // BATCH: objects still in their temp files, and the directories they go to
+  private final List<File[]> pending = new ArrayList<File[]>();
+  private final Set<String> pendingIds = new HashSet<String>();
+  private final Set<File> touchedDirs = new HashSet<File>();
+
+  LooseObjectWriter(File objectsDir, Durability durability) {
+    this.objectsDir = objectsDir;
+    this.durability = durability;
+  }
+
+  /**
+   * Checks whether the object is already stored (or waiting to be, in BATCH mode).
+   */
+  boolean contains(String hash) {
+    synchronized (pending) {
+      if (pendingIds.contains(hash)) {
+        return true;
+      }
+    }
+    return objectFile(hash).exists();
+  }
+
+  /**
+   * Writes an object given with its header, unless it already exists.
+   * Returns true if it had to be written.
+   */
+  boolean write(String hash, byte[] fullObject) throws IOException {
+    if (contains(hash)) {
+      return false;
+    }
+
+    File temp = File.createTempFile("tmp_obj_", null, fanOutDir(hash));
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      Deflater deflater = deflaters.get();
+      deflater.reset();
+      DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+      deflate.write(fullObject);
+      deflate.finish();
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    return commit(temp, hash);
+  }
+
+  /**
+   * Creates a temp file for an object whose id isn't known yet; pass it to commit() once it is.
+   */
+  File createTempFile() throws IOException {
+    objectsDir.mkdirs();
+    return File.createTempFile("tmp_obj_", null, objectsDir);
+  }
+
+  /**
+   * Moves a finished temp file into place as the given object, or deletes it if the
+   * object already exists. Returns true if the object is new.
+   */
+  boolean commit(File temp, String hash) throws IOException {
+    if (contains(hash)) {
+      temp.delete();
+      return false;
+    }
+
+    File target = objectFile(hash);
+    File dir = fanOutDir(hash);
+
+    switch (durability) {
+      case OBJECT:
+        sync(temp, false);
+        move(temp, target);
+        sync(dir, true);
+        break;
+      case BATCH:
+        synchronized (pending) {
+          // Another thread may have queued the same object meanwhile
+          if (!pendingIds.add(hash)) {
+            temp.delete();
+            return false;
+          }
+          pending.add(new File[] {temp, target});
+          touchedDirs.add(dir);
+        }
+        break;
+      default:
+        move(temp, target);
+        break;
+    }
+    return true;
+  }
+
+  /**
+   * In BATCH mode, makes the queued objects durable and moves them into place.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (pending) {
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      try (Stats.Phase phase = Stats.start("sync-objects")) {
+        // Contents first, so no object is visible before its data is on disk
+        for (File[] object : pending) {
+          sync(object[0], false);
+        }
+        for (File[] object : pending) {
+          move(object[0], object[1]);
+        }
+        for (File dir : touchedDirs) {
+          sync(dir, true);
+        }
+        phase.objects(pending.size());
+      }
+
+      pending.clear();
+      pendingIds.clear();
+      touchedDirs.clear();
+    }
+  }
+
+  private File objectFile(String hash) {
+    return new File(objectsDir, hash.substring(0, 2) + "/" + hash.substring(2));
+  }
+
+  /**
+   * Returns the fan-out directory of an object, creating it the first time it's needed.
+   */
+  private File fanOutDir(String hash) {
+    int index = Integer.parseInt(hash.substring(0, 2), 16);
+    File dir = new File(objectsDir, hash.substring(0, 2));
+    if (!knownDirs[index]) {
+      dir.mkdirs();
+      knownDirs[index] = true;
+    }
+    return dir;
+  }
+
+  /**
+   * Renames a finished temp file into place, read-only like git leaves its objects.
+   */
+  private static void move(File from, File to) throws IOException {
+    Main.makeReadOnly(from.toPath());
+    Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Flushes a file's data (or a directory's entries) to disk.
+   */
+  private static void sync(File file, boolean directory) throws IOException {
+    StandardOpenOption mode = directory ? StandardOpenOption.READ : StandardOpenOption.WRITE;
+    try (FileChannel channel = FileChannel.open(file.toPath(), mode)) {
+      channel.force(directory);
+    }
+  }
+}
@@ -1,7 +1,10 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -9,31 +12,97 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.InflaterInputStream;
 
 public class Main {
+  // Directory the current command runs in. Relative paths are resolved against it,
+  // because the daemon runs commands for clients in other directories.
+  private static File workDir = new File(System.getProperty("user.dir"));
+  
   public static void main(String[] args) {
     // You can use print statements as follows for debugging, they'll be visible when running tests.
     System.err.println("Logs from your program will appear here!");
 
+    // Hand the command to the daemon if one serves this repository
+    if (args.length > 0 && !args[0].equals("daemon")) {
+      SocketChannel daemon = Daemon.connect(new File(workDir, ".git"));
+      if (daemon != null) {
+        try (daemon) {
+          System.exit(Daemon.forward(daemon, args, workDir));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    int status = run(args, workDir);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+  
+  /**
+   * Runs one command in the given directory and returns its exit status.
+   * Called by main() and, for each client, by the daemon.
+   */
+  static int run(String[] args, File directory) {
+    workDir = directory;
+    
+    // "--stats <command>" prints how long each phase took once the command is done
+    if (args.length > 1 && args[0].equals("--stats")) {
+      Stats.collect();
+      try {
+        return run(Arrays.copyOfRange(args, 1, args.length), directory);
+      } finally {
+        Stats.report(System.err);
+      }
+    }
     final String command = args[0];
     
     switch (command) {
       case "init": {
-        final File root = new File(".git");
+        final File root = resolve(".git");
         new File(root, "objects").mkdirs();
         new File(root, "refs").mkdirs();
         final File head = new File(root, "HEAD");
@@ -49,103 +118,107 @@ public class Main {
       }
       
       case "cat-file": {
-        // args[1] should be "-p" (we can ignore it for now)
-        // args[2] is the blob hash (like "3b18e512dba79e4c8300dd08aeb37f8e728b8dad")
-        String blobHash = args[2];
+        // args[1] is the option: -p (content), -t (type), -s (size), -e (exists),
+        // or --batch / --batch-check
+        // args[2] is the object hash (like "3b18e512dba79e4c8300dd08aeb37f8e728b8dad")
+        String option = args[1];
         
-        // Step 1: Build the path to the blob file
-        // First 2 characters = folder name, rest = file name
-        String folderName = blobHash.substring(0, 2);      // "3b"
-        String fileName = blobHash.substring(2);            // "18e512dba79e4c8300dd08aeb37f8e728b8dad"
-        File blobFile = new File(".git/objects/" + folderName + "/" + fileName);
+        // --batch and --batch-check read object names from stdin instead
+        if (option.equals("--batch") || option.equals("--batch-check")) {
+          try {
+            catFileBatch(option.equals("--batch"));
+          } catch (IOException | DataFormatException e) {
+            throw new RuntimeException(e);
+          }
+          break;
+        }
         
-        try {
-          // Step 2: Read and decompress the file using zlib
-          FileInputStream fileStream = new FileInputStream(blobFile);
-          InflaterInputStream decompressStream = new InflaterInputStream(fileStream);
-          
-          // Read all the decompressed bytes
-          byte[] decompressedData = readAllBytes(decompressStream);
-          decompressStream.close();
-          
-          // Step 3: Find the null byte (\0) that separates header from content
-          // The format is: "blob <size>\0<content>"
-          int nullByteIndex = 0;
-          for (int i = 0; i < decompressedData.length; i++) {
-            if (decompressedData[i] == 0) {  // Found the null byte!
-              nullByteIndex = i;
-              break;
+        String objectHash = args[2];
+        
+        try (ObjectDatabase db = ObjectDatabase.open(resolve(".git"))) {
+          if (option.equals("-p")) {
+            // Stream the raw content to stdout, without a newline at the end
+            // and without ever holding the whole object in memory
+            if (!db.copyTo(objectHash, System.out)) {
+              throw new RuntimeException("Not a valid object name " + objectHash);
             }
+            System.out.flush();
+            break;
           }
           
-          // Step 4: Extract just the content (everything after the null byte)
-          // Create a string from the bytes starting after the null byte
-          String content = new String(
-            decompressedData,           // the byte array
-            nullByteIndex + 1,          // start position (after the \0)
-            decompressedData.length - nullByteIndex - 1  // length of content
-          );
-          
-          // Step 5: Print without adding a newline at the end!
-          System.out.print(content);
+          // The other options only need the "<type> <size>" header
+          ObjectHeader header = db.readHeader(objectHash);
+          switch (option) {
+            case "-e":
+              // No output, only the exit status tells whether the object exists
+              if (header == null) {
+                return 1;
+              }
+              break;
+            case "-t":
+            case "-s":
+              if (header == null) {
+                throw new RuntimeException("Not a valid object name " + objectHash);
+              }
+              System.out.println(option.equals("-t") ? header.type : String.valueOf(header.size));
+              break;
+            default:
+              throw new RuntimeException("Unknown cat-file option: " + option);
+          }
           
-        } catch (IOException e) {
+        } catch (IOException | DataFormatException e) {
           throw new RuntimeException(e);
         }
         break;
       }
       
       case "hash-object": {
-        // args[1] should be "-w" (means "write" - actually save the object)
-        // args[2] is the file path (like "test.txt")
-        String filePath = args[2];
+        // Usage: hash-object [-w] [--stdin] [--stdin-paths] [<file>...]
+        // -w writes the blob to .git/objects, otherwise the id is only computed
+        boolean write = false;
+        boolean fromStdin = false;
+        boolean stdinPaths = false;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+          switch (args[i]) {
+            case "-w": write = true; break;
+            case "--stdin": fromStdin = true; break;
+            case "--stdin-paths": stdinPaths = true; break;
+            default: paths.add(args[i]); break;
+          }
+        }
         
-        try {
-          // Step 1: Read the file content
-          File file = new File(filePath);
-          byte[] fileContent = Files.readAllBytes(file.toPath());
-          
-          // Step 2: Create the header: "blob <size>\0"
-          // Example: if file has 11 bytes, header is "blob 11\0"
-          String header = "blob " + fileContent.length + "\0";
-          
-          // Step 3: Combine header + content into one byte array
-          byte[] headerBytes = header.getBytes();
-          byte[] combined = new byte[headerBytes.length + fileContent.length];
-          
-          // Copy header bytes first
-          System.arraycopy(headerBytes, 0, combined, 0, headerBytes.length);
-          // Then copy file content after header
-          System.arraycopy(fileContent, 0, combined, headerBytes.length, fileContent.length);
+        // Closed even if a file fails, so BATCH still syncs and renames what was queued
+        try (LooseObjectWriter writer = write ? newObjectWriter() : null) {
+          // One hasher for all files, so its digest, deflater and buffer are reused
+          BlobHasher hasher = new BlobHasher(writer);
+          OutputStream out = new BufferedOutputStream(System.out, BATCH_BUFFER_SIZE);
           
-          // Step 4: Calculate SHA-1 hash of the combined data
-          MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-          byte[] hashBytes = sha1.digest(combined);
-          
-          // Convert hash bytes to a 40-character hex string
-          StringBuilder hexHash = new StringBuilder();
-          for (byte b : hashBytes) {
-            // Convert each byte to 2 hex characters
-            hexHash.append(String.format("%02x", b));
+          // Step 1: The content of stdin
+          if (fromStdin) {
+            ObjectId.writeHex(hashStdin(hasher), 0, out);
+            out.write('\n');
           }
-          String hash = hexHash.toString();  // "3b18e512dba79e4c8300dd08aeb37f8e728b8dad"
-          
-          // Step 5: Create the folder and file path
-          String folderName = hash.substring(0, 2);  // "3b"
-          String fileName = hash.substring(2);        // "18e512..."
-          File objectFolder = new File(".git/objects/" + folderName);
-          objectFolder.mkdirs();  // Create the folder if it doesn't exist
           
-          File objectFile = new File(objectFolder, fileName);
-          
-          // Step 6: Compress and write the data using zlib
-          FileOutputStream fileOutputStream = new FileOutputStream(objectFile);
-          DeflaterOutputStream compressStream = new DeflaterOutputStream(fileOutputStream);
-          compressStream.write(combined);  // Write the combined header + content
-          compressStream.close();
+          // Step 2: Files named on the command line
+          for (String path : paths) {
+            ObjectId.writeHex(hasher.hash(resolve(path)), 0, out);
+            out.write('\n');
+          }
           
-          // Step 7: Print the hash
-          System.out.println(hash);
+          // Step 3: Files named on stdin, one per line
+          if (stdinPaths) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+              ObjectId.writeHex(hasher.hash(resolve(line)), 0, out);
+              out.write('\n');
+              if (System.in.available() == 0 && !in.ready()) {
+                out.flush();
+              }
+            }
+          }
+          out.flush();
           
         } catch (IOException e) {
           throw new RuntimeException(e);
@@ -156,63 +229,37 @@ public class Main {
       }
       
       case "ls-tree": {
-        // args[1] is "--name-only" (we only print names)
-        // args[2] is the tree hash (like "abc123...")
-        String treeHash = args[2];
-        
-        // Step 1: Build the path to the tree object file
-        String folderName = treeHash.substring(0, 2);
-        String fileName = treeHash.substring(2);
-        File treeFile = new File(".git/objects/" + folderName + "/" + fileName);
+        // Usage: ls-tree [--name-only] [-r] [-t] <tree_sha>
+        // Prints "<mode> <type> <sha>\t<name>" for each entry, or only names with --name-only
+        boolean nameOnly = false;
+        boolean recursive = false;
+        boolean showTrees = false;
+        for (int i = 1; i < args.length - 1; i++) {
+          switch (args[i]) {
+            case "--name-only": nameOnly = true; break;
+            case "-r": recursive = true; break;
+            case "-t": showTrees = true; break;
+            default: throw new IllegalArgumentException("Unknown ls-tree option: " + args[i]);
+          }
+        }
+        String treeHash = args[args.length - 1];
         
-        try {
-          // Step 2: Read and decompress the file
-          FileInputStream fileStream = new FileInputStream(treeFile);
-          InflaterInputStream decompressStream = new InflaterInputStream(fileStream);
-          byte[] decompressedData = readAllBytes(decompressStream);
-          decompressStream.close();
-          
-          // Step 3: Skip the header ("tree <size>\0")
-          // Find the first null byte to skip past the header
-          int position = 0;
-          while (decompressedData[position] != 0) {
-            position++;
+        try (ObjectDatabase db = ObjectDatabase.open(resolve(".git"))) {
+          // Step 1: Look the tree up among loose objects and packs (a commit means its tree)
+          GitObject tree = db.read(treeHash);
+          if (tree != null && tree.type.equals("commit")) {
+            tree = db.read(new String(tree.data, 5, 40, StandardCharsets.US_ASCII));
           }
-          position++;  // Move past the null byte
-          
-          // Step 4: Parse each entry in the tree
-          // Format: <mode> <name>\0<20-byte-sha>
-          List<String> names = new ArrayList<String>();
-          
-          while (position < decompressedData.length) {
-            // Read the mode (like "100644" or "40000")
-            // Mode ends with a space
-            int modeStart = position;
-            while (decompressedData[position] != ' ') {
-              position++;
-            }
-            // String mode = new String(decompressedData, modeStart, position - modeStart);
-            position++;  // Skip the space
-            
-            // Read the name (ends with null byte)
-            int nameStart = position;
-            while (decompressedData[position] != 0) {
-              position++;
-            }
-            String name = new String(decompressedData, nameStart, position - nameStart);
-            names.add(name);
-            position++;  // Skip the null byte
-            
-            // Skip the 20-byte SHA-1 hash (we don't need it for --name-only)
-            position += 20;
+          if (tree == null || !tree.type.equals("tree")) {
+            throw new RuntimeException("Not a tree object: " + treeHash);
           }
           
-          // Step 5: Print each name on a new line
-          for (String name : names) {
-            System.out.println(name);
-          }
+          // Step 2: Stream the entries straight to a buffered stdout
+          OutputStream out = new BufferedOutputStream(System.out, BATCH_BUFFER_SIZE);
+          listTree(db, tree.data, new byte[0], nameOnly, recursive, showTrees, out);
+          out.flush();
           
-        } catch (IOException e) {
+        } catch (IOException | DataFormatException e) {
           throw new RuntimeException(e);
         }
         break;
@@ -220,8 +267,8 @@ public class Main {
       
       case "write-tree": {
         // Write the current directory as a tree object
-        try {
-          String treeHash = writeTree(new File("."));
+        try (LooseObjectWriter writer = newObjectWriter()) {
+          String treeHash = writeTree(workDir, writer);
           System.out.println(treeHash);
         } catch (IOException e) {
           throw new RuntimeException(e);
@@ -244,8 +291,8 @@ public class Main {
         String parentSha = args[3];
         String message = args[5];
         
-        try {
-          String commitHash = createCommit(treeSha, parentSha, message);
+        try (LooseObjectWriter writer = newObjectWriter()) {
+          String commitHash = createCommit(writer, treeSha, parentSha, message);
           System.out.println(commitHash);
         } catch (IOException e) {
           throw new RuntimeException(e);
@@ -256,35 +303,401 @@ public class Main {
       }
       
       case "clone": {
-        // Usage: clone <repo_url> <directory>
-        String repoUrl = args[1];
-        String targetDir = args[2];
+        // Usage: clone [--depth <n>] [--shallow-since <date>] <repo_url> <directory>
+        String deepen = null;
+        List<String> positional = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+          if (args[i].equals("--depth")) {
+            int depth = Integer.parseInt(args[++i]);
+            if (depth < 1) {
+              throw new IllegalArgumentException("--depth must be at least 1");
+            }
+            deepen = "deepen " + depth;
+          } else if (args[i].equals("--shallow-since")) {
+            deepen = "deepen-since " + parseDate(args[++i]);
+          } else {
+            positional.add(args[i]);
+          }
+        }
+        String repoUrl = positional.get(0);
+        String targetDir = positional.get(1);
         
         try {
-          cloneRepository(repoUrl, targetDir);
+          cloneRepository(repoUrl, targetDir, deepen);
         } catch (Exception e) {
           throw new RuntimeException(e);
         }
         break;
       }
       
+      case "repack":
+      case "gc": {
+        // Usage: repack [-d] [--window=<n>] [--depth=<n>] [--threads=<n>]
+        //        gc [--window=<n>] [--depth=<n>] [--threads=<n>]
+        // Packs all reachable objects into one pack. -d (always on for gc) then deletes
+        // the loose objects the new pack holds, and old packs with nothing it lacks.
+        // gc also writes the commit-graph.
+        boolean prune = command.equals("gc");
+        int window = Repack.DEFAULT_WINDOW;
+        int depth = Repack.DEFAULT_DEPTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+          String arg = args[i];
+          if (arg.equals("-d") && !prune) {
+            prune = true;
+          } else if (arg.startsWith("--window=")) {
+            window = Integer.parseInt(arg.substring("--window=".length()));
+          } else if (arg.startsWith("--depth=")) {
+            depth = Integer.parseInt(arg.substring("--depth=".length()));
+          } else if (arg.startsWith("--threads=")) {
+            threads = Integer.parseInt(arg.substring("--threads=".length()));
+          } else {
+            throw new IllegalArgumentException("Unknown " + command + " option: " + arg);
+          }
+        }
+        
+        try {
+          new Repack(resolve(".git"), window, depth, threads).run(prune);
+          if (command.equals("gc")) {
+            CommitGraphWriter.write(resolve(".git"));
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        break;
+      }
+      
+      case "log":
+      case "rev-list": {
+        // Usage: log [--oneline] [-n <n>] [--topo-order | --date-order] [<revision>...]
+        //        rev-list [-n <n>] [--topo-order | --date-order] <revision>...
+        // A revision can be ^<commit> or <from>..<to> to leave out history
+        try {
+          showHistory(command.equals("log"), args);
+        } catch (IOException | DataFormatException e) {
+          throw new RuntimeException(e);
+        }
+        break;
+      }
+      
+      case "merge-base": {
+        // Usage: merge-base --is-ancestor <commit> <commit>
+        // No output, the exit status is 0 if the first commit is an ancestor of the second
+        if (args.length != 4 || !args[1].equals("--is-ancestor")) {
+          throw new IllegalArgumentException("Usage: merge-base --is-ancestor <commit> <commit>");
+        }
+        try (RevWalk walk = new RevWalk(resolve(".git"))) {
+          if (!walk.isAncestor(walk.resolve(args[2]), walk.resolve(args[3]))) {
+            return 1;
+          }
+        } catch (IOException | DataFormatException e) {
+          throw new RuntimeException(e);
+        }
+        break;
+      }
+      
+      case "commit-graph": {
+        // Usage: commit-graph write
+        // Writes .git/objects/info/commit-graph for every commit reachable from the refs
+        if (args.length != 2 || !args[1].equals("write")) {
+          throw new IllegalArgumentException("Usage: commit-graph write");
+        }
+        try {
+          if (CommitGraphWriter.write(resolve(".git")) < 0) {
+            System.err.println("Not writing a commit-graph for a shallow repository");
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        break;
+      }
+      
+      case "daemon": {
+        // Serve commands for this repository until killed
+        try {
+          Daemon.serve(resolve(".git"));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        break;
+      }
+      
       default:
         System.out.println("Unknown command: " + command);
         break;
     }
+    return 0;
+  }
+  
+  /**
+   * Resolves a path given on the command line against the working directory.
+   */
+  private static File resolve(String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(workDir, path);
+  }
+  
+  // ============ HISTORY ============
+  
+  // How log shows dates, like git's default: "Thu Apr 7 15:13:13 2005 -0700"
+  private static final DateTimeFormatter LOG_DATE_FORMAT =
+      DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
+  
+  /**
+   * Runs log (commits with their author, date and message) or rev-list (only ids)
+   * over the history of the revisions on the command line.
+   */
+  private static void showHistory(boolean log, String[] args) throws IOException, DataFormatException {
+    RevWalk.Order order = RevWalk.Order.DEFAULT;
+    long maxCount = Long.MAX_VALUE;
+    boolean oneline = false;
+    List<String> revisions = new ArrayList<String>();
+    for (int i = 1; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--topo-order")) {
+        order = RevWalk.Order.TOPO;
+      } else if (arg.equals("--date-order")) {
+        order = RevWalk.Order.DATE;
+      } else if (arg.equals("-n")) {
+        maxCount = Long.parseLong(args[++i]);
+      } else if (arg.startsWith("--max-count=")) {
+        maxCount = Long.parseLong(arg.substring("--max-count=".length()));
+      } else if (arg.matches("-[0-9]+")) {
+        maxCount = Long.parseLong(arg.substring(1));
+      } else if (log && arg.equals("--oneline")) {
+        oneline = true;
+      } else if (arg.startsWith("-")) {
+        throw new IllegalArgumentException("Unknown " + args[0] + " option: " + arg);
+      } else {
+        revisions.add(arg);
+      }
+    }
+    if (revisions.isEmpty()) {
+      if (!log) {
+        throw new IllegalArgumentException("rev-list needs at least one revision");
+      }
+      revisions.add("HEAD");
+    }
+    
+    try (RevWalk walk = new RevWalk(resolve(".git"));
+        Stats.Phase phase = Stats.start("rev-walk")) {
+      // Step 1: Where the walk starts, and what it leaves out
+      walk.setOrder(order);
+      for (String revision : revisions) {
+        int range = revision.indexOf("..");
+        if (range >= 0) {
+          String from = revision.substring(0, range);
+          String to = revision.substring(range + 2);
+          walk.markUninteresting(walk.resolve(from.isEmpty() ? "HEAD" : from));
+          walk.markStart(walk.resolve(to.isEmpty() ? "HEAD" : to));
+        } else if (revision.startsWith("^")) {
+          walk.markUninteresting(walk.resolve(revision.substring(1)));
+        } else {
+          walk.markStart(walk.resolve(revision));
+        }
+      }
+      
+      // Step 2: Walk, reading commits only to print them
+      OutputStream out = new BufferedOutputStream(System.out, BATCH_BUFFER_SIZE);
+      long count = 0;
+      RevWalk.Commit commit;
+      while (count < maxCount && (commit = walk.next()) != null) {
+        if (log) {
+          writeLogEntry(walk.db(), commit, oneline, count == 0, out);
+        } else {
+          out.write((commit.id.name() + "\n").getBytes());
+        }
+        count++;
+      }
+      out.flush();
+      phase.objects(count);
+    }
+  }
+  
+  /**
+   * Writes one commit the way git log shows it, in the default (medium) format
+   * or in one line with --oneline.
+   */
+  private static void writeLogEntry(ObjectDatabase db, RevWalk.Commit commit, boolean oneline, boolean first,
+      OutputStream out) throws IOException, DataFormatException {
+    GitObject object = db.read(commit.id.toRaw(), 0);
+    String text = new String(object.data, StandardCharsets.UTF_8);
+    int split = text.indexOf("\n\n");
+    String message = split >= 0 ? text.substring(split + 2) : "";
+    String abbreviated = commit.id.name().substring(0, 7);
+    
+    StringBuilder entry = new StringBuilder();
+    if (oneline) {
+      // The subject: the first paragraph of the message, on one line
+      int subjectEnd = message.indexOf("\n\n");
+      String subject = (subjectEnd >= 0 ? message.substring(0, subjectEnd) : message).trim();
+      entry.append(abbreviated).append(' ').append(subject.replace('\n', ' ')).append('\n');
+      out.write(entry.toString().getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+    
+    if (!first) {
+      entry.append('\n');
+    }
+    entry.append("commit ").append(commit.id.name()).append('\n');
+    if (commit.parents.length > 1) {
+      entry.append("Merge:");
+      for (RevWalk.Commit parent : commit.parents) {
+        entry.append(' ').append(parent.id.name(), 0, 7);
+      }
+      entry.append('\n');
+    }
+    String author = RevWalk.headerValue(object.data, "author");
+    entry.append("Author: ").append(author, 0, author.lastIndexOf('>') + 1).append('\n');
+    entry.append("Date:   ").append(formatLogDate(author)).append("\n\n");
+    for (String line : message.stripTrailing().split("\n", -1)) {
+      entry.append("    ").append(line).append('\n');
+    }
+    out.write(entry.toString().getBytes(StandardCharsets.UTF_8));
+  }
+  
+  /**
+   * Formats the date of "<name> <<email>> <seconds> <+hhmm>" in its own time zone.
+   */
+  private static String formatLogDate(String identity) {
+    String[] parts = identity.substring(identity.lastIndexOf('>') + 1).trim().split(" ");
+    ZoneOffset zone = ZoneOffset.UTC;
+    if (parts.length > 1 && parts[1].matches("[+-][0-9]{4}")) {
+      int sign = parts[1].charAt(0) == '-' ? -1 : 1;
+      zone = ZoneOffset.ofHoursMinutes(sign * Integer.parseInt(parts[1].substring(1, 3)),
+          sign * Integer.parseInt(parts[1].substring(3, 5)));
+    }
+    return Instant.ofEpochSecond(RevWalk.parseTime(identity)).atOffset(zone).format(LOG_DATE_FORMAT);
+  }
+  
+  // ============ CAT-FILE BATCH MODE ============
+  
+  // Size of the stdout buffer in batch mode and for ls-tree
+  private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+  
+  /**
+   * Answers object queries read from stdin, one 40-character hex id per line.
+   * For each one prints "<sha> <type> <size>" followed, if withContent is set, by the
+   * content and a newline. Unknown names print "<name> missing".
+   * One ObjectDatabase serves every query, so the mapped packs, the delta base cache
+   * and the inflaters stay warm between objects.
+   */
+  private static void catFileBatch(boolean withContent) throws IOException, DataFormatException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    OutputStream out = new BufferedOutputStream(System.out, BATCH_BUFFER_SIZE);
+    
+    try (ObjectDatabase db = ObjectDatabase.open(resolve(".git"))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String name = line.trim();
+        ObjectHeader header = ObjectId.isHex(name) ? db.readHeader(name) : null;
+        
+        if (header == null) {
+          out.write((name + " missing\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+          out.write((name + " " + header.type + " " + header.size + "\n").getBytes(StandardCharsets.UTF_8));
+          if (withContent) {
+            db.copyTo(name, out);
+            out.write('\n');
+          }
+        }
+        
+        // Stay buffered while more queries are waiting, but don't leave a
+        // caller that writes one name at a time waiting for its answer
+        if (System.in.available() == 0 && !in.ready()) {
+          out.flush();
+        }
+      }
+    } finally {
+      out.flush();
+    }
+  }
+  
+  // ============ LS-TREE ============
+  
+  /**
+   * Writes the entries of a tree to out, with every name prefixed by prefix.
+   * With recursive set, subtrees are listed in place of their entry (and, with
+   * showTrees, after it). Entries are written as they are read and only the trees
+   * on the current path are held, so the memory use depends on depth, not size.
+   */
+  private static void listTree(ObjectDatabase db, byte[] treeData, byte[] prefix, boolean nameOnly,
+      boolean recursive, boolean showTrees, OutputStream out) throws IOException, DataFormatException {
+    TreeCursor entry = new TreeCursor(treeData);
+    while (entry.next()) {
+      boolean descend = recursive && entry.isTree();
+      
+      if (!descend || showTrees) {
+        if (!nameOnly) {
+          entry.writeMode(out);
+          out.write(' ');
+          out.write(entry.type().getBytes(StandardCharsets.US_ASCII));
+          out.write(' ');
+          entry.writeId(out);
+          out.write('\t');
+        }
+        out.write(prefix);
+        entry.writeName(out);
+        out.write('\n');
+      }
+      
+      if (descend) {
+        GitObject subtree = db.read(entry.buffer(), entry.idOffset());
+        if (subtree == null) {
+          throw new IOException("Missing tree in " + new String(prefix, StandardCharsets.UTF_8) + entry.name());
+        }
+        
+        // The subtree's entries are shown as "<prefix><name>/<entry>"
+        byte[] childPrefix = Arrays.copyOf(prefix, prefix.length + entry.nameLength() + 1);
+        System.arraycopy(entry.buffer(), entry.nameOffset(), childPrefix, prefix.length, entry.nameLength());
+        childPrefix[childPrefix.length - 1] = '/';
+        listTree(db, subtree.data, childPrefix, nameOnly, recursive, showTrees, out);
+      }
+    }
   }
   
   // ============ CLONE IMPLEMENTATION ============
   
-  // Store for objects during clone (hash -> decompressed data with header)
-  private static Map<String, byte[]> objectStore = new HashMap<String, byte[]>();
+  // Objects of the cloned pack (binary id -> pack offset); content is re-read from the pack
+  private static ObjectTable objectTable = new ObjectTable(0);
+  
+  // Capabilities the remote advertised with its refs (v0) or in its capability list (v2)
+  private static Set<String> remoteCapabilities = new HashSet<String>();
+  
+  // Protocol version the remote answered with: 0, or 2 if it speaks v2
+  private static int remoteProtocolVersion = 0;
+  
+  // Shared HTTP client, so connections are kept alive across requests (HTTP/2 where the server allows).
+  // Held in its own class so it's only built by commands that talk to a remote: building it
+  // loads the TLS stack, which would otherwise add most of a second to every command.
+  private static class Http {
+    static final HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+  
+  // How many files checkout writes at once
+  private static final int CHECKOUT_PARALLELISM = 32;
+  
+  // Size of the buffer used to stream the pack from the network to disk
+  private static final int PACK_BUFFER_SIZE = 64 * 1024;
+  
+  // Resolved delta bases by pack offset (same default limit as git's core.deltaBaseCacheLimit)
+  private static final DeltaBaseCache deltaBaseCache = new DeltaBaseCache(96L * 1024 * 1024);
   
   /**
    * Clones a repository from a URL to a local directory.
+   * If deepen is set (like "deepen 1"), only that much history is fetched.
    */
-  private static void cloneRepository(String repoUrl, String targetDir) throws Exception {
+  private static void cloneRepository(String repoUrl, String targetDir, String deepen) throws Exception {
+    // Start from a clean slate, the daemon can run several clones in one process
+    objectTable = new ObjectTable(0);
+    remoteCapabilities.clear();
+    remoteProtocolVersion = 0;
+    
     // Step 1: Create target directory and initialize git
-    File target = new File(targetDir);
+    File target = resolve(targetDir);
     target.mkdirs();
     
     File gitDir = new File(target, ".git");
@@ -292,621 +705,1009 @@ public class Main {
     new File(gitDir, "refs/heads").mkdirs();
     
     // Step 2: Discover refs (get list of branches and their commits)
-    String refsUrl = repoUrl + "/info/refs?service=git-upload-pack";
-    String headCommit = discoverRefs(refsUrl, gitDir);
+    String headCommit;
+    try (Stats.Phase phase = Stats.start("discover-refs")) {
+      headCommit = discoverRefs(repoUrl, gitDir, phase);
+    }
     
-    // Step 3: Request and receive packfile
+    // Step 3: Request the packfile and stream it to a temp file
     String uploadPackUrl = repoUrl + "/git-upload-pack";
-    byte[] packData = fetchPackfile(uploadPackUrl, headCommit);
+    File packFile;
+    try (Stats.Phase phase = Stats.start("fetch-pack")) {
+      packFile = fetchPackfile(uploadPackUrl, headCommit, deepen, gitDir);
+      phase.bytes(packFile.length());
+    }
     
     // Step 4: Parse the packfile and extract objects
-    parsePackfile(packData, gitDir);
+    List<PackIndexWriter.Entry> entries;
+    byte[] packChecksum = new byte[20];
+    try (PackFile pack = new PackFile(packFile)) {
+      entries = parsePackfile(pack);
+      // receivePack already checked this trailer against the content
+      pack.read(pack.length() - 20, packChecksum, 0, 20);
+    } catch (Exception e) {
+      packFile.delete();
+      throw e;
+    } finally {
+      deltaBaseCache.clear();
+    }
     
-    // Step 5: Checkout the HEAD commit
-    checkoutCommit(headCommit, target, gitDir);
+    // Step 5: Keep the pack as it is and write an index for it
+    File storedPack;
+    try (Stats.Phase phase = Stats.start("store-pack")) {
+      storedPack = storePack(packFile, entries, packChecksum, gitDir);
+      phase.objects(entries.size());
+    }
+    
+    // Step 6: Checkout the HEAD commit, reading objects back out of the pack
+    try (PackFile pack = new PackFile(storedPack)) {
+      checkoutCommit(headCommit, target, new PackReader(pack, objectTable::get, deltaBaseCache));
+    } finally {
+      deltaBaseCache.clear();
+    }
   }
   
   /**
-   * Discovers refs from the remote repository.
-   * Returns the SHA of the HEAD commit.
+   * Sends a request to the remote over the shared HTTP client.
+   * A null body makes a GET; otherwise the body is gzipped and POSTed as an
+   * upload-pack request. Returns the response body, decompressed if needed.
    */
-  private static String discoverRefs(String url, File gitDir) throws Exception {
-    URL refsUrl = new URL(url);
-    HttpURLConnection conn = (HttpURLConnection) refsUrl.openConnection();
-    conn.setRequestMethod("GET");
+  private static InputStream gitRequest(String url, byte[] body) throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+        .header("Git-Protocol", "version=2")
+        .header("Accept-Encoding", "gzip");
     
-    InputStream is = conn.getInputStream();
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] buffer = new byte[4096];
-    int len;
-    while ((len = is.read(buffer)) != -1) {
-      baos.write(buffer, 0, len);
+    if (body == null) {
+      request.GET();
+    } else {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+        gzip.write(body);
+      }
+      request.header("Content-Type", "application/x-git-upload-pack-request")
+          .header("Accept", "application/x-git-upload-pack-result")
+          .header("Content-Encoding", "gzip")
+          .POST(HttpRequest.BodyPublishers.ofByteArray(compressed.toByteArray()));
     }
-    is.close();
     
-    byte[] data = baos.toByteArray();
-    String response = new String(data);
+    HttpResponse<InputStream> response = Http.client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+    InputStream is = response.body();
+    if (response.statusCode() != 200) {
+      is.close();
+      throw new RuntimeException("HTTP " + response.statusCode() + " from " + url);
+    }
     
+    if (response.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip")) {
+      is = new GZIPInputStream(is, PACK_BUFFER_SIZE);
+    }
+    return new BufferedInputStream(is, PACK_BUFFER_SIZE);
+  }
+  
+  /**
+   * Discovers refs from the remote repository.
+   * Protocol v2 is asked for; servers that don't speak it answer with a v0 ref advertisement.
+   * The number of refs the server listed is recorded on the phase.
+   * Returns the SHA of the HEAD commit.
+   */
+  private static String discoverRefs(String repoUrl, File gitDir, Stats.Phase phase) throws Exception {
     String headCommit = null;
     String headRef = null;
-    
-    // Parse pkt-lines
-    int pos = 0;
-    while (pos < data.length) {
-      if (pos + 4 > data.length) break;
-      
-      String lenHex = new String(data, pos, 4);
-      if (lenHex.equals("0000")) {
-        pos += 4;
-        continue;
+    int refCount = 0;
+    
+    try (DataInputStream is = new DataInputStream(gitRequest(repoUrl + "/info/refs?service=git-upload-pack", null))) {
+      // Smart HTTP starts with "# service=git-upload-pack" and a flush
+      byte[] line = readPktLine(is);
+      if (line != null && new String(line).startsWith("#")) {
+        readPktLine(is);
+        line = readPktLine(is);
       }
       
-      int pktLen;
-      try {
-        pktLen = Integer.parseInt(lenHex, 16);
-      } catch (NumberFormatException e) {
-        pos += 4;
-        continue;
-      }
-      
-      if (pktLen <= 4) {
-        pos += 4;
-        continue;
-      }
-      
-      String content = new String(data, pos + 4, pktLen - 4);
-      pos += pktLen;
-      
-      // Skip service announcement
-      if (content.startsWith("#")) continue;
-      
-      // Parse ref line: <sha> <ref_name>
-      // First line has capabilities after null byte
-      if (content.length() >= 40) {
-        // Find the space after the SHA
-        int spaceIdx = content.indexOf(' ');
-        if (spaceIdx == 40) {
-          String sha = content.substring(0, 40);
-          
-          // Extract ref name (ends at null byte or end of line)
-          String rest = content.substring(41);
-          int nullIdx = rest.indexOf('\0');
-          String refName;
-          if (nullIdx >= 0) {
-            refName = rest.substring(0, nullIdx);
+      if (line != null && new String(line).trim().equals("version 2")) {
+        // Protocol v2: the server only lists its capabilities, refs come from ls-refs
+        remoteProtocolVersion = 2;
+        while ((line = readPktLine(is)) != null) {
+          // Like "fetch=shallow wait-for-done": keep the command and each of its features
+          String capability = new String(line).trim();
+          int equalsIdx = capability.indexOf('=');
+          if (equalsIdx >= 0) {
+            remoteCapabilities.add(capability.substring(0, equalsIdx));
+            remoteCapabilities.addAll(Arrays.asList(capability.substring(equalsIdx + 1).split(" ")));
           } else {
-            refName = rest.trim();
+            remoteCapabilities.add(capability);
           }
+        }
+      } else {
+        // Protocol v0: every ref is listed, one per pkt-line, until a flush
+        remoteProtocolVersion = 0;
+        for (; line != null; line = readPktLine(is)) {
+          String content = new String(line);
           
-          if (refName.equals("HEAD")) {
-            headCommit = sha;
+          // Parse ref line: <sha> <ref_name>
+          // First line has capabilities after null byte
+          if (content.length() >= 40) {
+            // Find the space after the SHA
+            int spaceIdx = content.indexOf(' ');
+            if (spaceIdx == 40) {
+              String sha = content.substring(0, 40);
+              refCount++;
+              
+              // Extract ref name (ends at null byte or end of line)
+              String rest = content.substring(41);
+              int nullIdx = rest.indexOf('\0');
+              String refName;
+              if (nullIdx >= 0) {
+                refName = rest.substring(0, nullIdx);
+                remoteCapabilities.addAll(Arrays.asList(rest.substring(nullIdx + 1).trim().split(" ")));
+              } else {
+                refName = rest.trim();
+              }
+              
+              if (refName.equals("HEAD")) {
+                headCommit = sha;
+              }
+              if (refName.equals("refs/heads/master") || refName.equals("refs/heads/main")) {
+                headRef = refName;
+                if (headCommit == null) {
+                  headCommit = sha;
+                }
+              }
+            }
           }
-          if (refName.equals("refs/heads/master") || refName.equals("refs/heads/main")) {
-            headRef = refName;
-            if (headCommit == null) {
-              headCommit = sha;
+        }
+      }
+    }
+    
+    if (remoteProtocolVersion == 2) {
+      // Only ask for HEAD; its symref target tells us which branch it is
+      ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+      writePktLine(requestBody, "command=ls-refs\n");
+      requestBody.write("0001".getBytes());  // Delimiter packet
+      writePktLine(requestBody, "symrefs\n");
+      writePktLine(requestBody, "ref-prefix HEAD\n");
+      requestBody.write("0000".getBytes());
+      
+      try (DataInputStream is = new DataInputStream(gitRequest(repoUrl + "/git-upload-pack", requestBody.toByteArray()))) {
+        byte[] line;
+        while ((line = readPktLine(is)) != null) {
+          // Format: <sha> <ref_name> [symref-target:<ref>]
+          String[] parts = new String(line).trim().split(" ");
+          if (parts[0].equals("ERR")) {
+            throw new RuntimeException("Remote error: " + new String(line).substring(4).trim());
+          }
+          refCount++;
+          if (parts.length >= 2 && parts[1].equals("HEAD")) {
+            headCommit = parts[0];
+            for (int i = 2; i < parts.length; i++) {
+              if (parts[i].startsWith("symref-target:")) {
+                headRef = parts[i].substring("symref-target:".length());
+              }
             }
           }
         }
       }
     }
     
+    phase.objects(refCount);
+    if (headCommit == null) {
+      throw new RuntimeException("Remote has no HEAD");
+    }
+    
     // Write HEAD file
     File headFile = new File(gitDir, "HEAD");
     String refToWrite = headRef != null ? headRef : "refs/heads/master";
     Files.write(headFile.toPath(), ("ref: " + refToWrite + "\n").getBytes());
     
-    // Write the ref file
-    if (headRef != null && headCommit != null) {
-      File refFile = new File(gitDir, headRef);
-      refFile.getParentFile().mkdirs();
-      Files.write(refFile.toPath(), (headCommit + "\n").getBytes());
+    // Write the ref file
+    if (headRef != null) {
+      File refFile = new File(gitDir, headRef);
+      refFile.getParentFile().mkdirs();
+      Files.write(refFile.toPath(), (headCommit + "\n").getBytes());
+    }
+    
+    return headCommit;
+  }
+  
+  /**
+   * Fetches the packfile from the server.
+   * The pack is streamed into a temp file under .git/objects/pack as it arrives,
+   * so memory use doesn't grow with the size of the repository.
+   * For a shallow fetch, the commits whose parents were cut off are written to .git/shallow.
+   */
+  private static File fetchPackfile(String url, String wantCommit, String deepen, File gitDir) throws Exception {
+    // Build the request body in pkt-line format
+    ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    boolean sideBand;
+    
+    if (deepen != null) {
+      // Protocol v2 has deepen-since as part of its shallow feature
+      String capability = deepen.startsWith("deepen-since ") && remoteProtocolVersion == 0 ? "deepen-since" : "shallow";
+      if (!remoteCapabilities.contains(capability)) {
+        throw new RuntimeException("Remote does not support " + capability);
+      }
+    }
+    
+    if (remoteProtocolVersion == 2) {
+      // Protocol v2 fetch: arguments after a delimiter; the pack always comes side-band
+      sideBand = true;
+      writePktLine(requestBody, "command=fetch\n");
+      requestBody.write("0001".getBytes());  // Delimiter packet
+      writePktLine(requestBody, "ofs-delta\n");
+      writePktLine(requestBody, "want " + wantCommit + "\n");
+      if (deepen != null) {
+        writePktLine(requestBody, deepen + "\n");
+      }
+      writePktLine(requestBody, "done\n");
+      requestBody.write("0000".getBytes());
+    } else {
+      // First want line includes capabilities.
+      // ofs-delta lets the server refer to bases by offset, which the delta base cache is keyed on.
+      // side-band-64k multiplexes pack data (band 1), progress (band 2) and errors (band 3).
+      sideBand = remoteCapabilities.contains("side-band-64k");
+      String wantLine = "want " + wantCommit + (sideBand ? " side-band-64k" : " no-progress") + " ofs-delta"
+          + (deepen != null ? " shallow" : "") + "\n";
+      writePktLine(requestBody, wantLine);
+      
+      // Shallow fetch: ask the server to cut history off
+      if (deepen != null) {
+        writePktLine(requestBody, deepen + "\n");
+      }
+      
+      // Flush packet (0000)
+      requestBody.write("0000".getBytes());
+      
+      // Done
+      writePktLine(requestBody, "done\n");
+    }
+    
+    // Read response
+    DataInputStream is = new DataInputStream(gitRequest(url, requestBody.toByteArray()));
+    
+    // A shallow fetch starts with the shallow/unshallow lines. In v0 the server then
+    // acknowledges, and since we sent no "have" lines this ends with a NAK. In v2 the
+    // shallow lines are in a "shallow-info" section and the pack follows "packfile".
+    Set<String> shallow = new TreeSet<String>();
+    while (true) {
+      byte[] line = readPktLine(is);
+      if (line == null) {
+        continue;  // Flush or delimiter packet
+      }
+      String text = new String(line).trim();
+      if (text.startsWith("ERR ")) {
+        throw new RuntimeException("Remote error: " + text.substring(4));
+      }
+      if (text.startsWith("shallow ")) {
+        shallow.add(text.substring(8));
+      } else if (text.startsWith("unshallow ")) {
+        shallow.remove(text.substring(10));
+      } else if (remoteProtocolVersion == 2 ? text.equals("packfile") : text.equals("NAK") || text.startsWith("ACK ")) {
+        break;
+      }
+    }
+    
+    if (!shallow.isEmpty()) {
+      writeShallow(gitDir, shallow);
+    }
+    
+    // Everything after that is the pack, possibly wrapped in side-band frames
+    InputStream packStream = sideBand ? new SideBandInputStream(is) : is;
+    byte[] signature = new byte[4];
+    new DataInputStream(packStream).readFully(signature);
+    if (!new String(signature).equals("PACK")) {
+      throw new RuntimeException("Expected PACK in response, got " + new String(signature));
+    }
+    
+    File packDir = new File(gitDir, "objects/pack");
+    packDir.mkdirs();
+    File packFile = Files.createTempFile(packDir.toPath(), "tmp_pack_", null).toFile();
+    try {
+      receivePack(packStream, signature, packFile);
+    } catch (Exception e) {
+      packFile.delete();
+      throw e;
+    } finally {
+      is.close();
+    }
+    return packFile;
+  }
+  
+  /**
+   * Writes .git/shallow: the commits whose parents are missing on purpose, one per line.
+   */
+  private static void writeShallow(File gitDir, Set<String> shallow) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (String sha : shallow) {
+      content.append(sha).append("\n");
+    }
+    Files.write(new File(gitDir, "shallow").toPath(), content.toString().getBytes());
+  }
+  
+  /**
+   * Parses a --shallow-since date: seconds since the epoch, an ISO date
+   * (2024-01-31, taken as midnight UTC) or an ISO date-time with offset.
+   * Returns seconds since the epoch.
+   */
+  private static long parseDate(String date) {
+    if (date.matches("\\d+")) {
+      return Long.parseLong(date);
+    }
+    try {
+      return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    } catch (DateTimeParseException e) {
+      return OffsetDateTime.parse(date).toEpochSecond();
+    }
+  }
+  
+  /**
+   * Copies the rest of the pack stream into a file while hashing it.
+   * The last 20 bytes of a pack are the SHA-1 of everything before them, so the
+   * hash runs 20 bytes behind the copy and the held-back bytes are checked at the end.
+   */
+  private static void receivePack(InputStream is, byte[] signature, File packFile) throws Exception {
+    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+    byte[] buffer = new byte[PACK_BUFFER_SIZE + 20];
+    
+    // The signature has already been read off the stream
+    System.arraycopy(signature, 0, buffer, 0, signature.length);
+    int held = signature.length;
+    
+    try (FileOutputStream fos = new FileOutputStream(packFile)) {
+      fos.write(buffer, 0, held);
+      int len;
+      while ((len = is.read(buffer, held, buffer.length - held)) != -1) {
+        fos.write(buffer, held, len);
+        int total = held + len;
+        if (total > 20) {
+          // Hash all but the last 20 bytes and keep those for the next round
+          sha1.update(buffer, 0, total - 20);
+          System.arraycopy(buffer, total - 20, buffer, 0, 20);
+          held = 20;
+        } else {
+          held = total;
+        }
+      }
+    }
+    
+    if (held < 20) {
+      throw new RuntimeException("Truncated packfile");
+    }
+    byte[] checksum = Arrays.copyOf(buffer, 20);
+    if (!MessageDigest.isEqual(sha1.digest(), checksum)) {
+      throw new RuntimeException("Packfile checksum mismatch");
+    }
+  }
+  
+  /**
+   * Writes a pkt-line to the output stream.
+   */
+  private static void writePktLine(OutputStream os, String data) throws IOException {
+    byte[] bytes = data.getBytes();
+    String len = String.format("%04x", bytes.length + 4);
+    os.write(len.getBytes());
+    os.write(bytes);
+  }
+  
+  /**
+   * Reads a pkt-line from the input stream.
+   * Returns the payload, or null for a flush (0000), delimiter (0001) or response-end (0002) packet.
+   */
+  private static byte[] readPktLine(DataInputStream is) throws IOException {
+    int len = readPktLength(is);
+    if (len < 0) {
+      return null;
+    }
+    byte[] payload = new byte[len];
+    is.readFully(payload);
+    return payload;
+  }
+  
+  /**
+   * Reads the 4 hex digit length of a pkt-line.
+   * Returns the payload length (without the 4 length bytes), or -1 for a flush,
+   * delimiter or response-end packet.
+   */
+  private static int readPktLength(DataInputStream is) throws IOException {
+    int len = 0;
+    for (int i = 0; i < 4; i++) {
+      int c = is.read();
+      if (c < 0) {
+        throw new EOFException("Unexpected end of pkt-line stream");
+      }
+      int digit = Character.digit(c, 16);
+      if (digit < 0) {
+        throw new IOException("Invalid pkt-line length byte: " + (char) c);
+      }
+      len = (len << 4) | digit;
+    }
+    if (len <= 2) {
+      return -1;
+    }
+    if (len < 4) {
+      throw new IOException("Invalid pkt-line length: " + len);
+    }
+    return len - 4;
+  }
+  
+  /**
+   * Reads the pack out of a side-band-64k response.
+   * Band 1 frames are returned as data, band 2 (progress) is copied to stderr as it
+   * arrives and band 3 (a fatal error) is reported and then thrown. A flush packet
+   * ends the stream.
+   */
+  private static class SideBandInputStream extends InputStream {
+    private final DataInputStream in;
+    private final byte[] frame = new byte[65520];
+    private int framePosition = 0;
+    private int frameLength = 0;
+    private boolean eof = false;
+    
+    SideBandInputStream(DataInputStream in) {
+      this.in = in;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      if (!nextFrame()) {
+        return -1;
+      }
+      return frame[framePosition++] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextFrame()) {
+        return -1;
+      }
+      int count = Math.min(len, frameLength - framePosition);
+      System.arraycopy(frame, framePosition, b, off, count);
+      framePosition += count;
+      return count;
     }
     
-    return headCommit;
+    /**
+     * Makes sure there is unread pack data in the frame.
+     * Returns false once the stream is over.
+     */
+    private boolean nextFrame() throws IOException {
+      while (framePosition == frameLength) {
+        if (eof) {
+          return false;
+        }
+        
+        int len = readPktLength(in);
+        if (len < 0) {
+          eof = true;
+          return false;
+        }
+        if (len == 0) {
+          continue;  // Empty frame, no band byte
+        }
+        if (len > frame.length) {
+          throw new IOException("Side-band frame too large: " + len);
+        }
+        
+        int band = in.read();
+        in.readFully(frame, 0, len - 1);
+        switch (band) {
+          case 1:
+            framePosition = 0;
+            frameLength = len - 1;
+            break;
+          case 2:
+            System.err.write(frame, 0, len - 1);
+            System.err.flush();
+            break;
+          case 3:
+            String message = new String(frame, 0, len - 1).trim();
+            System.err.println("remote: " + message);
+            throw new IOException("Remote error: " + message);
+          default:
+            throw new IOException("Unknown side-band channel: " + band);
+        }
+      }
+      return true;
+    }
   }
   
   /**
-   * Fetches the packfile from the server.
+   * Parses a packfile and extracts all objects.
+   * Returns one index entry per object.
+   *
+   * This works like git index-pack, in two passes:
+   *   1. Walk the pack in order, recording where each object is and what its base is.
+   *      Only non-delta objects can be hashed here; deltas are just skipped over.
+   *   2. Resolve the deltas on a fork/join pool. Each task starts from one object and
+   *      applies the deltas built on it, so separate delta trees run on separate cores.
    */
-  private static byte[] fetchPackfile(String url, String wantCommit) throws Exception {
-    URL packUrl = new URL(url);
-    HttpURLConnection conn = (HttpURLConnection) packUrl.openConnection();
-    conn.setRequestMethod("POST");
-    conn.setDoOutput(true);
-    conn.setRequestProperty("Content-Type", "application/x-git-upload-pack-request");
-    conn.setRequestProperty("Accept", "application/x-git-upload-pack-result");
-    
-    // Build the request body in pkt-line format
-    ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+  private static List<PackIndexWriter.Entry> parsePackfile(PackFile pack) throws Exception {
+    // Read header: PACK
+    if (pack.byteAt(0) != 'P' || pack.byteAt(1) != 'A' || pack.byteAt(2) != 'C' || pack.byteAt(3) != 'K') {
+      throw new RuntimeException("Invalid pack header");
+    }
     
-    // First want line includes capabilities (NO side-band for simplicity)
-    String wantLine = "want " + wantCommit + " no-progress\n";
-    writePktLine(requestBody, wantLine);
+    // Read version (4 bytes, big-endian)
+    int version = pack.intAt(4);
     
-    // Flush packet (0000)
-    requestBody.write("0000".getBytes());
+    // Read number of objects (4 bytes, big-endian, unsigned)
+    long numObjects = pack.intAt(8) & 0xFFFFFFFFL;
     
-    // Done
-    writePktLine(requestBody, "done\n");
+    objectTable.ensureCapacity((int) Math.min(numObjects, Integer.MAX_VALUE));
     
-    OutputStream os = conn.getOutputStream();
-    os.write(requestBody.toByteArray());
-    os.close();
+    // Pass 1: scan every object
+    List<PackedObject> objects = new ArrayList<PackedObject>();
+    List<PackedObject> roots = new ArrayList<PackedObject>();
+    DeltaTrees trees = new DeltaTrees();
     
-    // Read response
-    InputStream is = conn.getInputStream();
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] buffer = new byte[8192];
-    int len;
-    while ((len = is.read(buffer)) != -1) {
-      baos.write(buffer, 0, len);
-    }
-    is.close();
-    
-    byte[] response = baos.toByteArray();
-    
-    // Find the start of the PACK data (after "PACK" signature)
-    int packStart = -1;
-    for (int i = 0; i < response.length - 4; i++) {
-      if (response[i] == 'P' && response[i+1] == 'A' && response[i+2] == 'C' && response[i+3] == 'K') {
-        packStart = i;
-        break;
+    try (Stats.Phase phase = Stats.start("index-pack")) {
+      long position = 12;  // After header
+      for (long i = 0; i < numObjects; i++) {
+        PackedObject object = scanPackObject(pack, position);
+        objects.add(object);
+        
+        if (object.type == 6) {
+          trees.addOfsDelta(object);
+        } else if (object.type == 7) {
+          trees.addRefDelta(object);
+        } else {
+          roots.add(object);
+        }
+        position = object.end;
       }
+      phase.bytes(pack.length()).objects(numObjects);
     }
     
-    if (packStart == -1) {
-      // Debug: show what we got
-      System.err.println("Response length: " + response.length);
-      if (response.length > 0 && response.length < 500) {
-        System.err.println("Response: " + new String(response));
+    // Pass 2: resolve the delta trees hanging off each root in parallel
+    PackReader reader = new PackReader(pack, objectTable::get, deltaBaseCache);
+    List<ResolveDeltasTask> tasks = new ArrayList<ResolveDeltasTask>();
+    for (PackedObject root : roots) {
+      if (trees.hasChildren(root)) {
+        tasks.add(new ResolveDeltasTask(reader, root, null, 0, trees));
       }
-      throw new RuntimeException("Could not find PACK in response");
     }
     
-    byte[] packData = new byte[response.length - packStart];
-    System.arraycopy(response, packStart, packData, 0, packData.length);
-    return packData;
+    ForkJoinPool pool = new ForkJoinPool();
+    try (Stats.Phase phase = Stats.start("resolve-deltas")) {
+      // The cache lives as long as the process, so only this clone's share is reported
+      long hits = deltaBaseCache.hits();
+      long misses = deltaBaseCache.misses();
+      pool.invoke(new RecursiveAction() {
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+      phase.objects(trees.resolved()).deltaDepth(trees.maxDepth())
+          .cache(deltaBaseCache.hits() - hits, deltaBaseCache.misses() - misses);
+    } finally {
+      pool.shutdown();
+    }
+    
+    if (trees.resolved() != objects.size() - roots.size()) {
+      throw new RuntimeException("Pack has " + (objects.size() - roots.size() - trees.resolved())
+          + " unresolved deltas");
+    }
+    
+    // Every object now has its SHA
+    List<PackIndexWriter.Entry> entries = new ArrayList<PackIndexWriter.Entry>(objects.size());
+    for (PackedObject object : objects) {
+      entries.add(new PackIndexWriter.Entry(object.sha, object.offset, object.crc32));
+    }
+    return entries;
   }
   
   /**
-   * Writes a pkt-line to the output stream.
+   * Moves a received pack to .git/objects/pack/pack-<checksum>.pack and writes its .idx.
+   * Objects stay in the pack exactly as the server compressed them.
+   * Returns the stored pack.
    */
-  private static void writePktLine(OutputStream os, String data) throws IOException {
-    byte[] bytes = data.getBytes();
-    String len = String.format("%04x", bytes.length + 4);
-    os.write(len.getBytes());
-    os.write(bytes);
+  static File storePack(File packFile, List<PackIndexWriter.Entry> entries, byte[] packChecksum,
+      File gitDir) throws Exception {
+    File packDir = new File(gitDir, "objects/pack");
+    String baseName = "pack-" + ObjectId.toHex(packChecksum);
+    
+    // The pack goes in first, so anyone who sees the .idx can also open the pack.
+    // Both are read-only once in place, as git leaves them
+    File finalPack = new File(packDir, baseName + ".pack");
+    makeReadOnly(packFile.toPath());
+    Files.move(packFile.toPath(), finalPack.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    
+    File tempIndex = Files.createTempFile(packDir.toPath(), "tmp_idx_", null).toFile();
+    try {
+      PackIndexWriter.write(tempIndex, entries, packChecksum);
+      makeReadOnly(tempIndex.toPath());
+      Files.move(tempIndex.toPath(), new File(packDir, baseName + ".idx").toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tempIndex.delete();
+    }
+    return finalPack;
   }
   
   /**
-   * Parses a packfile and extracts all objects.
+   * Makes a file read-only for everyone (0444), like git does for packs and loose
+   * objects. createTempFile gives 0600, which would hide them from other users.
    */
-  private static void parsePackfile(byte[] packData, File gitDir) throws Exception {
-    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packData));
-    
-    // Read header: PACK
-    byte[] magic = new byte[4];
-    dis.readFully(magic);
-    if (magic[0] != 'P' || magic[1] != 'A' || magic[2] != 'C' || magic[3] != 'K') {
-      throw new RuntimeException("Invalid pack header");
+  static void makeReadOnly(Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("r--r--r--"));
+    } catch (UnsupportedOperationException e) {
+      path.toFile().setReadOnly();
     }
-    
-    // Read version (4 bytes, big-endian)
-    int version = dis.readInt();
-    
-    // Read number of objects (4 bytes, big-endian)
-    int numObjects = dis.readInt();
-    
-    // Track position in the stream
-    int position = 12;  // After header
-    
-    // Parse each object
-    for (int i = 0; i < numObjects; i++) {
-      position = parsePackObject(packData, position, gitDir);
+  }
+  
+  /**
+   * What pass 1 of parsePackfile learns about an object.
+   * Deltas get their type and SHA filled in by pass 2.
+   */
+  private static class PackedObject {
+    final long offset;     // Where the object starts
+    int type;              // Raw pack type: 1-4, or 6/7 for deltas
+    long size;             // Size from the object header (the delta size for deltas)
+    long dataStart;        // Where the zlib stream starts
+    long end;              // Where the next object starts
+    long baseOffset = -1;  // OFS_DELTA base
+    ObjectId baseSha;      // REF_DELTA base
+    int crc32;
+    
+    volatile String typeName;
+    volatile byte[] sha;
+    
+    PackedObject(long offset) {
+      this.offset = offset;
     }
   }
   
   /**
-   * Parses a single object from the packfile.
-   * Returns the new position after the object.
+   * Reads one object's header and finds where it ends.
+   * Non-delta objects are hashed and stored straight away.
    */
-  private static int parsePackObject(byte[] packData, int offset, File gitDir) throws Exception {
-    int position = offset;
+  private static PackedObject scanPackObject(PackFile pack, long offset) throws Exception {
+    PackedObject object = new PackedObject(offset);
+    long position = offset;
     
     // Read the type and size (variable-length encoding)
-    int firstByte = packData[position++] & 0xFF;
+    int firstByte = pack.byteAt(position++);
     int type = (firstByte >> 4) & 0x7;
     long size = firstByte & 0x0F;
     int shift = 4;
     
     while ((firstByte & 0x80) != 0) {
-      firstByte = packData[position++] & 0xFF;
+      firstByte = pack.byteAt(position++);
       size |= ((long)(firstByte & 0x7F)) << shift;
       shift += 7;
     }
+    object.type = type;
+    object.size = size;
     
     // Types: 1=commit, 2=tree, 3=blob, 4=tag, 6=ofs_delta, 7=ref_delta
-    String typeStr;
-    byte[] objectData;
+    PackInflater inflater = PackInflater.get();
     
     if (type == 6) {
       // OFS_DELTA: offset to base object
-      int deltaOffset = 0;
-      int b = packData[position++] & 0xFF;
+      long deltaOffset = 0;
+      int b = pack.byteAt(position++);
       deltaOffset = b & 0x7F;
       while ((b & 0x80) != 0) {
-        b = packData[position++] & 0xFF;
+        b = pack.byteAt(position++);
         deltaOffset = ((deltaOffset + 1) << 7) | (b & 0x7F);
       }
+      object.baseOffset = offset - deltaOffset;
       
-      // Decompress delta data
-      byte[] deltaData = decompressAtPosition(packData, position);
-      position += getCompressedSize(packData, position);
-      
-      // Find base object
-      int baseOffset = offset - deltaOffset;
-      byte[] baseData = getObjectAtOffset(packData, baseOffset);
-      
-      // Apply delta
-      objectData = applyDelta(baseData, deltaData);
-      typeStr = getTypeAtOffset(packData, baseOffset);
+      // The delta is applied in pass 2, for now just skip over it
+      object.dataStart = position;
+      position += inflater.skip(pack, position);
       
     } else if (type == 7) {
       // REF_DELTA: SHA of base object
       byte[] baseSha = new byte[20];
-      System.arraycopy(packData, position, baseSha, 0, 20);
+      pack.read(position, baseSha, 0, 20);
       position += 20;
-      String baseShaHex = bytesToHexString(baseSha);
-      
-      // Decompress delta data
-      byte[] deltaData = decompressAtPosition(packData, position);
-      position += getCompressedSize(packData, position);
-      
-      // Get base object from store
-      byte[] baseWithHeader = objectStore.get(baseShaHex);
-      if (baseWithHeader == null) {
-        throw new RuntimeException("Base object not found: " + baseShaHex);
-      }
-      
-      // Extract base data (skip header)
-      int nullIndex = 0;
-      while (baseWithHeader[nullIndex] != 0) nullIndex++;
-      byte[] baseData = new byte[baseWithHeader.length - nullIndex - 1];
-      System.arraycopy(baseWithHeader, nullIndex + 1, baseData, 0, baseData.length);
+      object.baseSha = ObjectId.fromRaw(baseSha);
       
-      // Get type from base
-      String headerStr = new String(baseWithHeader, 0, nullIndex);
-      typeStr = headerStr.split(" ")[0];
-      
-      // Apply delta
-      objectData = applyDelta(baseData, deltaData);
+      object.dataStart = position;
+      position += inflater.skip(pack, position);
       
     } else {
-      // Regular object
-      switch (type) {
-        case 1: typeStr = "commit"; break;
-        case 2: typeStr = "tree"; break;
-        case 3: typeStr = "blob"; break;
-        case 4: typeStr = "tag"; break;
-        default: throw new RuntimeException("Unknown type: " + type);
-      }
+      // Regular object: hash it now
+      object.typeName = PackReader.typeName(type);
+      object.dataStart = position;
+      byte[] objectData = inflater.inflate(pack, position, size);
+      position += inflater.bytesConsumed();
+      object.sha = storeObject(object.typeName, objectData, offset);
       
-      // Decompress object data
-      objectData = decompressAtPosition(packData, position);
-      position += getCompressedSize(packData, position);
+      // Pass 2 starts its delta trees here, so keep it around if there's room
+      deltaBaseCache.put(offset, object.typeName, objectData);
     }
     
-    // Create the full object with header
-    String header = typeStr + " " + objectData.length + "\0";
-    byte[] headerBytes = header.getBytes();
-    byte[] fullObject = new byte[headerBytes.length + objectData.length];
-    System.arraycopy(headerBytes, 0, fullObject, 0, headerBytes.length);
-    System.arraycopy(objectData, 0, fullObject, headerBytes.length, objectData.length);
-    
-    // Calculate hash and store
-    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-    byte[] hashBytes = sha1.digest(fullObject);
-    String hash = bytesToHexString(hashBytes);
-    
-    // Store in memory and write to disk
-    objectStore.put(hash, fullObject);
-    writeObjectRaw(hash, fullObject, gitDir);
-    
-    return position;
+    object.end = position;
+    object.crc32 = pack.crc32(offset, position - offset);
+    return object;
   }
   
   /**
-   * Gets the object data at a given offset in the packfile.
+   * The deltas in a pack, grouped by the object they apply to.
+   * Built during pass 1 and only read during pass 2.
    */
-  private static byte[] getObjectAtOffset(byte[] packData, int offset) throws Exception {
-    int position = offset;
-    
-    int firstByte = packData[position++] & 0xFF;
-    int type = (firstByte >> 4) & 0x7;
-    long size = firstByte & 0x0F;
-    int shift = 4;
-    
-    while ((firstByte & 0x80) != 0) {
-      firstByte = packData[position++] & 0xFF;
-      size |= ((long)(firstByte & 0x7F)) << shift;
-      shift += 7;
+  private static class DeltaTrees {
+    private final Map<Long, List<PackedObject>> ofsChildren = new HashMap<Long, List<PackedObject>>();
+    private final Map<ObjectId, List<PackedObject>> refChildren = new HashMap<ObjectId, List<PackedObject>>();
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    
+    void addOfsDelta(PackedObject delta) {
+      ofsChildren.computeIfAbsent(delta.baseOffset, k -> new ArrayList<PackedObject>()).add(delta);
     }
     
-    if (type == 6) {
-      // OFS_DELTA
-      int deltaOffset = 0;
-      int b = packData[position++] & 0xFF;
-      deltaOffset = b & 0x7F;
-      while ((b & 0x80) != 0) {
-        b = packData[position++] & 0xFF;
-        deltaOffset = ((deltaOffset + 1) << 7) | (b & 0x7F);
-      }
-      
-      byte[] deltaData = decompressAtPosition(packData, position);
-      int baseOffset = offset - deltaOffset;
-      byte[] baseData = getObjectAtOffset(packData, baseOffset);
-      return applyDelta(baseData, deltaData);
-      
-    } else if (type == 7) {
-      // REF_DELTA
-      byte[] baseSha = new byte[20];
-      System.arraycopy(packData, position, baseSha, 0, 20);
-      position += 20;
-      String baseShaHex = bytesToHexString(baseSha);
-      
-      byte[] deltaData = decompressAtPosition(packData, position);
-      byte[] baseWithHeader = objectStore.get(baseShaHex);
-      
-      int nullIndex = 0;
-      while (baseWithHeader[nullIndex] != 0) nullIndex++;
-      byte[] baseData = new byte[baseWithHeader.length - nullIndex - 1];
-      System.arraycopy(baseWithHeader, nullIndex + 1, baseData, 0, baseData.length);
-      
-      return applyDelta(baseData, deltaData);
-    } else {
-      return decompressAtPosition(packData, position);
+    void addRefDelta(PackedObject delta) {
+      refChildren.computeIfAbsent(delta.baseSha, k -> new ArrayList<PackedObject>()).add(delta);
     }
-  }
-  
-  /**
-   * Gets the type string for an object at a given offset.
-   */
-  private static String getTypeAtOffset(byte[] packData, int offset) throws Exception {
-    int firstByte = packData[offset] & 0xFF;
-    int type = (firstByte >> 4) & 0x7;
     
-    if (type == 6 || type == 7) {
-      // Delta - recursively find base type
-      int position = offset + 1;
-      while ((packData[position - 1] & 0x80) != 0) {
-        position++;
+    /**
+     * Returns the deltas whose base is the given object. Its SHA must already be known.
+     */
+    List<PackedObject> childrenOf(PackedObject base) {
+      List<PackedObject> byOffset = ofsChildren.get(base.offset);
+      List<PackedObject> bySha = refChildren.get(ObjectId.fromRaw(base.sha));
+      if (bySha == null) {
+        return byOffset != null ? byOffset : new ArrayList<PackedObject>();
       }
-      
-      if (type == 6) {
-        int deltaOffset = 0;
-        int b = packData[position++] & 0xFF;
-        deltaOffset = b & 0x7F;
-        while ((b & 0x80) != 0) {
-          b = packData[position++] & 0xFF;
-          deltaOffset = ((deltaOffset + 1) << 7) | (b & 0x7F);
-        }
-        return getTypeAtOffset(packData, offset - deltaOffset);
-      } else {
-        byte[] baseSha = new byte[20];
-        System.arraycopy(packData, position, baseSha, 0, 20);
-        String baseShaHex = bytesToHexString(baseSha);
-        byte[] baseWithHeader = objectStore.get(baseShaHex);
-        int nullIndex = 0;
-        while (baseWithHeader[nullIndex] != 0) nullIndex++;
-        return new String(baseWithHeader, 0, nullIndex).split(" ")[0];
+      if (byOffset == null) {
+        return bySha;
       }
+      List<PackedObject> all = new ArrayList<PackedObject>(byOffset);
+      all.addAll(bySha);
+      return all;
     }
     
-    switch (type) {
-      case 1: return "commit";
-      case 2: return "tree";
-      case 3: return "blob";
-      case 4: return "tag";
-      default: throw new RuntimeException("Unknown type: " + type);
+    boolean hasChildren(PackedObject base) {
+      return ofsChildren.containsKey(base.offset) || refChildren.containsKey(ObjectId.fromRaw(base.sha));
     }
-  }
-  
-  /**
-   * Decompresses zlib data at the given position.
-   */
-  private static byte[] decompressAtPosition(byte[] data, int offset) throws Exception {
-    Inflater inflater = new Inflater();
-    inflater.setInput(data, offset, data.length - offset);
     
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    byte[] buffer = new byte[1024];
-    
-    while (!inflater.finished()) {
-      int count = inflater.inflate(buffer);
-      if (count == 0 && inflater.needsInput()) {
-        break;
-      }
-      baos.write(buffer, 0, count);
+    /**
+     * Counts a resolved delta that is depth deltas away from a full object.
+     */
+    void markResolved(int depth) {
+      resolved.incrementAndGet();
+      maxDepth.accumulateAndGet(depth, Math::max);
     }
     
-    inflater.end();
-    return baos.toByteArray();
-  }
-  
-  /**
-   * Gets the compressed size of zlib data at the given position.
-   */
-  private static int getCompressedSize(byte[] data, int offset) throws Exception {
-    Inflater inflater = new Inflater();
-    inflater.setInput(data, offset, data.length - offset);
-    
-    byte[] buffer = new byte[1024];
-    while (!inflater.finished()) {
-      int count = inflater.inflate(buffer);
-      if (count == 0 && inflater.needsInput()) {
-        break;
-      }
+    long resolved() {
+      return resolved.get();
     }
     
-    int totalIn = (int) inflater.getTotalIn();
-    inflater.end();
-    return totalIn;
+    int maxDepth() {
+      return maxDepth.get();
+    }
   }
   
   /**
-   * Applies a delta to a base object.
+   * Resolves every delta that depends, directly or through other deltas, on one object.
+   * The object's own deltas are applied here, and each of them that is a base for
+   * further deltas becomes a new task, so subtrees spread over the pool's workers.
    */
-  private static byte[] applyDelta(byte[] base, byte[] delta) throws Exception {
-    int position = 0;
-    
-    // Read base size (variable-length)
-    long baseSize = 0;
-    int shift = 0;
-    int b;
-    do {
-      b = delta[position++] & 0xFF;
-      baseSize |= ((long)(b & 0x7F)) << shift;
-      shift += 7;
-    } while ((b & 0x80) != 0);
-    
-    // Read result size (variable-length)
-    long resultSize = 0;
-    shift = 0;
-    do {
-      b = delta[position++] & 0xFF;
-      resultSize |= ((long)(b & 0x7F)) << shift;
-      shift += 7;
-    } while ((b & 0x80) != 0);
-    
-    // Apply delta instructions
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
+  private static class ResolveDeltasTask extends RecursiveAction {
+    private final PackReader reader;
+    private final PackedObject base;
+    private final int depth;  // How many deltas the base is from a full object
+    private final DeltaTrees trees;
+    private byte[] baseData;  // null for roots, which are re-read from the pack
+    
+    ResolveDeltasTask(PackReader reader, PackedObject base, byte[] baseData, int depth, DeltaTrees trees) {
+      this.reader = reader;
+      this.base = base;
+      this.baseData = baseData;
+      this.depth = depth;
+      this.trees = trees;
+    }
     
-    while (position < delta.length) {
-      int cmd = delta[position++] & 0xFF;
-      
-      if ((cmd & 0x80) != 0) {
-        // Copy from base
-        int copyOffset = 0;
-        int copySize = 0;
-        
-        if ((cmd & 0x01) != 0) copyOffset |= (delta[position++] & 0xFF);
-        if ((cmd & 0x02) != 0) copyOffset |= (delta[position++] & 0xFF) << 8;
-        if ((cmd & 0x04) != 0) copyOffset |= (delta[position++] & 0xFF) << 16;
-        if ((cmd & 0x08) != 0) copyOffset |= (delta[position++] & 0xFF) << 24;
-        
-        if ((cmd & 0x10) != 0) copySize |= (delta[position++] & 0xFF);
-        if ((cmd & 0x20) != 0) copySize |= (delta[position++] & 0xFF) << 8;
-        if ((cmd & 0x40) != 0) copySize |= (delta[position++] & 0xFF) << 16;
-        
-        if (copySize == 0) copySize = 0x10000;
+    @Override
+    protected void compute() {
+      try {
+        if (baseData == null) {
+          baseData = reader.read(base.offset).data;
+        }
         
-        result.write(base, copyOffset, copySize);
+        List<ResolveDeltasTask> subtasks = new ArrayList<ResolveDeltasTask>();
+        for (PackedObject delta : trees.childrenOf(base)) {
+          byte[] deltaData = PackInflater.get().inflate(reader.pack(), delta.dataStart, delta.size);
+          byte[] objectData = Delta.apply(baseData, deltaData);
+          
+          delta.typeName = base.typeName;
+          delta.sha = storeObject(delta.typeName, objectData, delta.offset);
+          trees.markResolved(depth + 1);
+          
+          if (trees.hasChildren(delta)) {
+            subtasks.add(new ResolveDeltasTask(reader, delta, objectData, depth + 1, trees));
+          }
+        }
         
-      } else if (cmd > 0) {
-        // Insert new data
-        result.write(delta, position, cmd);
-        position += cmd;
+        // Our base isn't needed any more while the subtrees run
+        baseData = null;
+        invokeAll(subtasks);
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to resolve deltas on object at offset " + base.offset, e);
       }
     }
-    
-    return result.toByteArray();
   }
   
   /**
-   * Writes an object to .git/objects with the given raw data.
+   * Hashes an object and records where it lives in the pack.
+   * Returns the SHA-1.
    */
-  private static void writeObjectRaw(String hash, byte[] data, File gitDir) throws IOException {
-    String folderName = hash.substring(0, 2);
-    String fileName = hash.substring(2);
-    
-    File objectFolder = new File(gitDir, "objects/" + folderName);
-    objectFolder.mkdirs();
-    
-    File objectFile = new File(objectFolder, fileName);
+  private static byte[] storeObject(String type, byte[] data, long packOffset) throws NoSuchAlgorithmException {
+    // Hash header + content without copying them into one array
+    String header = type + " " + data.length + "\0";
+    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+    sha1.update(header.getBytes());
+    byte[] hashBytes = sha1.digest(data);
     
-    FileOutputStream fos = new FileOutputStream(objectFile);
-    DeflaterOutputStream dos = new DeflaterOutputStream(fos);
-    dos.write(data);
-    dos.close();
+    objectTable.put(hashBytes, 0, packOffset);
+    return hashBytes;
+  }
+  
+  /**
+   * Reads an object of the cloned pack by its id.
+   */
+  private static GitObject readObject(PackReader reader, byte[] id, int idOffset) throws Exception {
+    long offset = objectTable.get(id, idOffset);
+    if (offset < 0) {
+      throw new RuntimeException("Object not found: " + ObjectId.toHex(id, idOffset));
+    }
+    return reader.read(offset);
   }
   
   /**
    * Checks out the given commit to the working directory.
    */
-  private static void checkoutCommit(String commitHash, File targetDir, File gitDir) throws Exception {
+  private static void checkoutCommit(String commitHash, File targetDir, PackReader reader) throws Exception {
     // Read commit object
-    byte[] commitData = objectStore.get(commitHash);
-    if (commitData == null) {
-      throw new RuntimeException("Commit not found: " + commitHash);
+    GitObject commit = readObject(reader, ObjectId.fromHex(commitHash).toRaw(), 0);
+    if (!commit.type.equals("commit")) {
+      throw new RuntimeException("Not a commit: " + commitHash);
     }
     
     // Parse commit to find tree hash
-    String commitContent = new String(commitData);
+    String commitContent = new String(commit.data);
     int treeStart = commitContent.indexOf("tree ") + 5;
     String treeHash = commitContent.substring(treeStart, treeStart + 40);
     
     // Checkout the tree
-    checkoutTree(treeHash, targetDir);
+    checkoutTree(treeHash, targetDir, reader);
   }
   
   /**
-   * Recursively checks out a tree to the given directory.
+   * A file that checkout still has to write.
    */
-  private static void checkoutTree(String treeHash, File directory) throws Exception {
-    byte[] treeData = objectStore.get(treeHash);
-    if (treeData == null) {
-      throw new RuntimeException("Tree not found: " + treeHash);
-    }
-    
-    // Skip header (find null byte)
-    int position = 0;
-    while (treeData[position] != 0) position++;
-    position++;  // Skip null byte
-    
-    // Parse entries
-    while (position < treeData.length) {
-      // Read mode
-      int modeStart = position;
-      while (treeData[position] != ' ') position++;
-      String mode = new String(treeData, modeStart, position - modeStart);
-      position++;  // Skip space
-      
-      // Read name
-      int nameStart = position;
-      while (treeData[position] != 0) position++;
-      String name = new String(treeData, nameStart, position - nameStart);
-      position++;  // Skip null byte
-      
-      // Read SHA (20 bytes)
-      byte[] shaBytes = new byte[20];
-      System.arraycopy(treeData, position, shaBytes, 0, 20);
-      position += 20;
-      String sha = bytesToHexString(shaBytes);
+  private static class CheckoutFile {
+    final File path;
+    final int mode;
+    final long packOffset;
+    
+    CheckoutFile(File path, int mode, long packOffset) {
+      this.path = path;
+      this.mode = mode;
+      this.packOffset = packOffset;
+    }
+  }
+  
+  /**
+   * Checks out a tree to the given directory.
+   * All directories are created first, then CHECKOUT_PARALLELISM virtual threads
+   * take turns picking the next file to write.
+   */
+  private static void checkoutTree(String treeHash, File directory, PackReader reader) throws Exception {
+    // Step 1: Create the directory skeleton and collect the files
+    List<CheckoutFile> files = new ArrayList<CheckoutFile>();
+    collectCheckout(ObjectId.fromHex(treeHash).toRaw(), 0, directory, reader, files);
+    
+    // Step 2: Write the files in parallel.
+    // A fixed set of workers (rather than a thread per file) keeps the
+    // per-thread pack window and inflater warm across files.
+    AtomicInteger next = new AtomicInteger();
+    AtomicLong written = new AtomicLong();
+    List<Future<Void>> workers = new ArrayList<Future<Void>>();
+    try (Stats.Phase phase = Stats.start("checkout");
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < Math.min(CHECKOUT_PARALLELISM, files.size()); i++) {
+        workers.add(executor.submit(() -> {
+          int index;
+          long bytes = 0;
+          while ((index = next.getAndIncrement()) < files.size()) {
+            bytes += writeCheckoutFile(files.get(index), reader);
+          }
+          written.addAndGet(bytes);
+          return null;
+        }));
+      }
       
-      File entryFile = new File(directory, name);
+      // Surface the first failure, if any
+      for (Future<Void> worker : workers) {
+        try {
+          worker.get();
+        } catch (ExecutionException e) {
+          next.set(files.size());  // Stop the other workers
+          throw new RuntimeException("Checkout failed", e.getCause());
+        }
+      }
+      phase.bytes(written.get()).objects(files.size());
+    }
+  }
+  
+  /**
+   * Recursively creates the directories of a tree and collects its files.
+   */
+  private static void collectCheckout(byte[] treeId, int treeIdOffset, File directory, PackReader reader,
+      List<CheckoutFile> files) throws Exception {
+    GitObject tree = readObject(reader, treeId, treeIdOffset);
+    
+    // Walk the entries in place; the 20-byte SHA is looked up where it is, without copying it out
+    TreeCursor entry = new TreeCursor(tree.data);
+    while (entry.next()) {
+      File entryFile = new File(directory, entry.name());
       
-      if (mode.equals("40000")) {
+      if (entry.isTree()) {
         // Directory
         entryFile.mkdirs();
-        checkoutTree(sha, entryFile);
+        collectCheckout(entry.buffer(), entry.idOffset(), entryFile, reader, files);
+      } else if (entry.isGitlink()) {
+        // Submodule: git leaves an empty directory
+        entryFile.mkdirs();
       } else {
-        // File
-        byte[] blobData = objectStore.get(sha);
-        if (blobData == null) {
-          throw new RuntimeException("Blob not found: " + sha);
+        // File (written later)
+        long blobOffset = objectTable.get(entry.buffer(), entry.idOffset());
+        if (blobOffset < 0) {
+          throw new RuntimeException("Blob not found: " + ObjectId.toHex(entry.buffer(), entry.idOffset()));
         }
-        
-        // Skip blob header
-        int blobPos = 0;
-        while (blobData[blobPos] != 0) blobPos++;
-        blobPos++;
-        
-        byte[] content = new byte[blobData.length - blobPos];
-        System.arraycopy(blobData, blobPos, content, 0, content.length);
-        
-        Files.write(entryFile.toPath(), content);
+        files.add(new CheckoutFile(entryFile, entry.mode(), blobOffset));
+      }
+    }
+  }
+  
+  /**
+   * Writes one file of a checkout, keeping its executable bit or symlink mode.
+   * Returns the size of its content.
+   */
+  private static long writeCheckoutFile(CheckoutFile file, PackReader reader) throws Exception {
+    byte[] content = reader.read(file.packOffset).data;
+    
+    if (file.mode == TreeCursor.MODE_SYMLINK) {
+      // Symlink: the blob is the link target
+      String target = new String(content, StandardCharsets.UTF_8);
+      try {
+        Files.createSymbolicLink(file.path.toPath(), Paths.get(target));
+        return content.length;
+      } catch (UnsupportedOperationException e) {
+        // No symlinks here, so write the target as a plain file like git does
+      }
+    }
+    
+    Files.write(file.path.toPath(), content);
+    
+    if (file.mode == TreeCursor.MODE_EXECUTABLE) {
+      makeExecutable(file.path.toPath());
+    }
+    return content.length;
+  }
+  
+  /**
+   * Adds execute permission wherever the file is readable, like git does for mode 100755.
+   */
+  private static void makeExecutable(Path path) throws IOException {
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+      if (permissions.contains(PosixFilePermission.OWNER_READ)) {
+        permissions.add(PosixFilePermission.OWNER_EXECUTE);
+      }
+      if (permissions.contains(PosixFilePermission.GROUP_READ)) {
+        permissions.add(PosixFilePermission.GROUP_EXECUTE);
+      }
+      if (permissions.contains(PosixFilePermission.OTHERS_READ)) {
+        permissions.add(PosixFilePermission.OTHERS_EXECUTE);
       }
+      Files.setPosixFilePermissions(path, permissions);
+    } catch (UnsupportedOperationException e) {
+      path.toFile().setExecutable(true);
     }
   }
   
@@ -916,7 +1717,7 @@ public class Main {
    * Creates a commit object and writes it to .git/objects.
    * Returns the 40-character SHA-1 hash.
    */
-  private static String createCommit(String treeSha, String parentSha, String message) 
+  private static String createCommit(LooseObjectWriter writer, String treeSha, String parentSha, String message) 
       throws IOException, NoSuchAlgorithmException {
     
     // Build the commit content (the part after the header)
@@ -954,168 +1755,287 @@ public class Main {
     // Calculate SHA-1 hash
     MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
     byte[] hashBytes = sha1.digest(fullObject);
-    String hash = bytesToHexString(hashBytes);
+    String hash = ObjectId.toHex(hashBytes);
     
     // Write to .git/objects
-    writeObject(hash, fullObject);
+    writer.write(hash, fullObject);
     
     return hash;
   }
   
   /**
-   * Recursively writes a directory as a tree object.
+   * Writes a directory as a tree object, using .git/index to skip work that was already done.
+   * Files whose stat data still matches their index entry aren't read again, and directories
+   * where nothing changed keep the tree id from the index's cache-tree. Afterwards the index
+   * is rewritten to describe the directory as it is now.
+   * Directories and changed files are processed in parallel on a fork/join pool.
    * Returns the 40-character SHA-1 hash of the tree.
    */
-  private static String writeTree(File directory) throws IOException, NoSuchAlgorithmException {
-    // Get all files and folders in this directory
-    File[] entries = directory.listFiles();
+  private static String writeTree(File directory, LooseObjectWriter writer) throws IOException, NoSuchAlgorithmException {
+    File indexFile = new File(directory, ".git/index");
+    DirCache previous;
+    try (Stats.Phase phase = Stats.start("read-index")) {
+      previous = DirCache.read(indexFile);
+      phase.bytes(indexFile.length()).objects(previous.size());
+    }
+    
+    WriteTreeTask root = new WriteTreeTask(directory, "", new DirCache.Tree(""), previous, previous.tree(), writer);
+    ForkJoinPool pool = new ForkJoinPool();
+    try (Stats.Phase phase = Stats.start("write-tree")) {
+      pool.invoke(root);
+      phase.objects(root.entries.size());
+    } finally {
+      pool.shutdown();
+    }
     
-    if (entries == null) {
-      entries = new File[0];
+    DirCache updated = new DirCache();
+    for (DirCache.Entry entry : root.entries) {
+      updated.add(entry);
     }
+    updated.setTree(root.node);
     
-    // Sort entries alphabetically by name (Git requires this!)
-    Arrays.sort(entries, new Comparator<File>() {
-      public int compare(File a, File b) {
-        return a.getName().compareTo(b.getName());
+    // Leave the index alone if it already describes the directory
+    if (!updated.sameAs(previous)) {
+      try (Stats.Phase phase = Stats.start("write-index")) {
+        updated.write(indexFile);
+        phase.bytes(indexFile.length()).objects(updated.size());
       }
-    });
+    }
+    return ObjectId.toHex(root.node.id);
+  }
+  
+  /**
+   * Writes one directory as a tree object.
+   * prefix is the directory's path in the index ("" or ending in "/") and cached is its
+   * cache-tree node from the previous index, if any. Subdirectories and files that have
+   * to be hashed again become subtasks; their results are put together in tree order
+   * afterwards, so the ids don't depend on how the work was scheduled.
+   * When done, node holds the tree id and entries the directory's files in index order.
+   */
+  private static class WriteTreeTask extends RecursiveAction {
+    private final File directory;
+    private final String prefix;
+    private final DirCache previous;
+    private final DirCache.Tree cached;
+    private final LooseObjectWriter writer;
+    
+    final DirCache.Tree node;
+    final List<DirCache.Entry> entries = new ArrayList<DirCache.Entry>();
+    
+    WriteTreeTask(File directory, String prefix, DirCache.Tree node, DirCache previous, DirCache.Tree cached,
+        LooseObjectWriter writer) {
+      this.directory = directory;
+      this.prefix = prefix;
+      this.node = node;
+      this.previous = previous;
+      this.cached = cached;
+      this.writer = writer;
+    }
     
-    // Build the tree content (without header)
-    ByteArrayOutputStream treeContent = new ByteArrayOutputStream();
+    @Override
+    protected void compute() {
+      try {
+        writeTree();
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to write tree for " + directory, e);
+      }
+    }
     
-    for (File entry : entries) {
-      String name = entry.getName();
+    private void writeTree() throws IOException, NoSuchAlgorithmException {
+      // Get all files and folders in this directory
+      File[] files = directory.listFiles();
       
-      // Skip the .git directory!
-      if (name.equals(".git")) {
-        continue;
+      if (files == null) {
+        files = new File[0];
       }
       
-      String mode;
-      byte[] shaBytes;
+      // Sort entries the way git orders trees: a directory sorts as if its name ended in "/".
+      // The keys are computed once, so each entry is only stat'ed once for the sort.
+      TreeMap<String, File> sorted = new TreeMap<String, File>();
+      for (File file : files) {
+        sorted.put(treeSortKey(file), file);
+      }
       
-      if (entry.isFile()) {
-        // It's a file - create a blob and get its hash
-        mode = "100644";  // Regular file mode
-        String blobHash = writeBlob(entry);
-        shaBytes = hexStringToBytes(blobHash);
-      } else if (entry.isDirectory()) {
-        // It's a directory - recursively create a tree
-        mode = "40000";  // Directory mode (NOT 040000!)
-        String subTreeHash = writeTree(entry);
-        shaBytes = hexStringToBytes(subTreeHash);
-      } else {
-        // Skip special files
-        continue;
+      // One slot per entry, in tree order: an unchanged DirCache.Entry, a HashFileTask or a WriteTreeTask
+      List<String> names = new ArrayList<String>();
+      List<Object> slots = new ArrayList<Object>();
+      List<RecursiveAction> subtasks = new ArrayList<RecursiveAction>();
+      
+      for (File file : sorted.values()) {
+        String name = file.getName();
+        
+        // Skip the .git directory!
+        if (name.equals(".git")) {
+          continue;
+        }
+        
+        if (file.isFile()) {
+          // It's a file - reuse its blob id if it didn't change, otherwise hash it again
+          String path = prefix + name;
+          DirCache.Entry indexed = previous.get(path);
+          if (indexed != null && !previous.isRacilyClean(indexed) && indexed.matches(file.toPath())) {
+            slots.add(indexed);
+          } else {
+            HashFileTask task = new HashFileTask(file, path, indexed, writer);
+            slots.add(task);
+            subtasks.add(task);
+          }
+        } else if (file.isDirectory()) {
+          // It's a directory - it becomes a tree of its own
+          DirCache.Tree cachedChild = cached == null ? null : cached.child(name);
+          WriteTreeTask task = new WriteTreeTask(file, prefix + name + "/", new DirCache.Tree(name), previous,
+              cachedChild, writer);
+          slots.add(task);
+          subtasks.add(task);
+        } else {
+          // Skip special files
+          continue;
+        }
+        names.add(name);
+      }
+      
+      invokeAll(subtasks);
+      
+      // Build the tree content (without header), in order
+      ByteArrayOutputStream treeContent = new ByteArrayOutputStream();
+      boolean changed = cached == null || !cached.isValid();
+      
+      for (int i = 0; i < slots.size(); i++) {
+        Object slot = slots.get(i);
+        String mode;
+        byte[] shaBytes;
+        
+        if (slot instanceof WriteTreeTask) {
+          WriteTreeTask subtree = (WriteTreeTask) slot;
+          mode = "40000";  // Directory mode (NOT 040000!)
+          shaBytes = subtree.node.id;
+          node.children.add(subtree.node);
+          entries.addAll(subtree.entries);
+          changed |= subtree.cached == null || !Arrays.equals(subtree.cached.id, shaBytes);
+        } else if (slot instanceof HashFileTask) {
+          HashFileTask hashed = (HashFileTask) slot;
+          mode = "100644";  // Regular file mode
+          shaBytes = hashed.entry.id;
+          entries.add(hashed.entry);
+          changed |= hashed.indexed == null || !Arrays.equals(hashed.indexed.id, shaBytes);
+        } else {
+          DirCache.Entry unchanged = (DirCache.Entry) slot;
+          mode = "100644";  // Regular file mode
+          shaBytes = unchanged.id;
+          entries.add(unchanged);
+        }
+        
+        // Write entry: <mode> <name>\0<20-byte-sha>
+        treeContent.write((mode + " " + names.get(i)).getBytes());
+        treeContent.write(0);  // Null byte
+        treeContent.write(shaBytes);  // 20 bytes of SHA
       }
       
-      // Write entry: <mode> <name>\0<20-byte-sha>
-      treeContent.write((mode + " " + name).getBytes());
-      treeContent.write(0);  // Null byte
-      treeContent.write(shaBytes);  // 20 bytes of SHA
+      // Nothing added, removed or changed: the tree object from last time is still right
+      node.entryCount = entries.size();
+      if (!changed && cached.entryCount == node.entryCount && cached.children.size() == node.children.size()) {
+        node.id = cached.id;
+        return;
+      }
+      
+      // Now create the full tree object with header
+      byte[] content = treeContent.toByteArray();
+      String header = "tree " + content.length + "\0";
+      byte[] headerBytes = header.getBytes();
+      
+      // Combine header + content
+      byte[] fullObject = new byte[headerBytes.length + content.length];
+      System.arraycopy(headerBytes, 0, fullObject, 0, headerBytes.length);
+      System.arraycopy(content, 0, fullObject, headerBytes.length, content.length);
+      
+      // Calculate SHA-1 hash
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      byte[] hashBytes = sha1.digest(fullObject);
+      String hash = ObjectId.toHex(hashBytes);
+      
+      // Write to .git/objects (nothing to do if it's already there)
+      writer.write(hash, fullObject);
+      
+      node.id = hashBytes;
     }
-    
-    // Now create the full tree object with header
-    byte[] content = treeContent.toByteArray();
-    String header = "tree " + content.length + "\0";
-    byte[] headerBytes = header.getBytes();
-    
-    // Combine header + content
-    byte[] fullObject = new byte[headerBytes.length + content.length];
-    System.arraycopy(headerBytes, 0, fullObject, 0, headerBytes.length);
-    System.arraycopy(content, 0, fullObject, headerBytes.length, content.length);
-    
-    // Calculate SHA-1 hash
-    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-    byte[] hashBytes = sha1.digest(fullObject);
-    String hash = bytesToHexString(hashBytes);
-    
-    // Write to .git/objects
-    writeObject(hash, fullObject);
-    
-    return hash;
   }
   
   /**
-   * Creates a blob object from a file and writes it to .git/objects.
-   * Returns the 40-character SHA-1 hash.
+   * Hashes (and writes) one file whose index entry is missing or out of date.
    */
-  private static String writeBlob(File file) throws IOException, NoSuchAlgorithmException {
-    // Read file content
-    byte[] fileContent = Files.readAllBytes(file.toPath());
-    
-    // Create header
-    String header = "blob " + fileContent.length + "\0";
-    byte[] headerBytes = header.getBytes();
-    
-    // Combine header + content
-    byte[] fullObject = new byte[headerBytes.length + fileContent.length];
-    System.arraycopy(headerBytes, 0, fullObject, 0, headerBytes.length);
-    System.arraycopy(fileContent, 0, fullObject, headerBytes.length, fileContent.length);
-    
-    // Calculate SHA-1 hash
-    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-    byte[] hashBytes = sha1.digest(fullObject);
-    String hash = bytesToHexString(hashBytes);
-    
-    // Write to .git/objects
-    writeObject(hash, fullObject);
+  private static class HashFileTask extends RecursiveAction {
+    private final File file;
+    private final String path;
+    private final LooseObjectWriter writer;
+    
+    final DirCache.Entry indexed;  // The outdated entry, or null
+    DirCache.Entry entry;
+    
+    HashFileTask(File file, String path, DirCache.Entry indexed, LooseObjectWriter writer) {
+      this.file = file;
+      this.path = path;
+      this.indexed = indexed;
+      this.writer = writer;
+    }
     
-    return hash;
+    @Override
+    protected void compute() {
+      try {
+        byte[] id = writeBlob(file, blobHasher(writer));
+        entry = DirCache.Entry.fromFile(path, file.toPath(), TreeCursor.MODE_FILE, id);
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to hash " + file, e);
+      }
+    }
+  }
+  
+  // Each pool thread reuses one BlobHasher (digest, deflater and buffer) per writer
+  private static final ThreadLocal<BlobHasher> blobHashers = new ThreadLocal<BlobHasher>();
+  
+  private static BlobHasher blobHasher(LooseObjectWriter writer) throws NoSuchAlgorithmException {
+    BlobHasher hasher = blobHashers.get();
+    if (hasher == null || hasher.writer() != writer) {
+      hasher = new BlobHasher(writer);
+      blobHashers.set(hasher);
+    }
+    return hasher;
   }
   
   /**
-   * Writes an object to .git/objects/<first2chars>/<rest>
+   * Returns the name a directory entry is sorted by in a tree: directories get a trailing "/".
    */
-  private static void writeObject(String hash, byte[] data) throws IOException {
-    String folderName = hash.substring(0, 2);
-    String fileName = hash.substring(2);
-    
-    File objectFolder = new File(".git/objects/" + folderName);
-    objectFolder.mkdirs();
-    
-    File objectFile = new File(objectFolder, fileName);
-    
-    // Compress and write
-    FileOutputStream fos = new FileOutputStream(objectFile);
-    DeflaterOutputStream dos = new DeflaterOutputStream(fos);
-    dos.write(data);
-    dos.close();
+  private static String treeSortKey(File file) {
+    return file.isDirectory() ? file.getName() + "/" : file.getName();
   }
   
   /**
-   * Converts a byte array to a hex string.
-   * Example: [0x3b, 0x18] -> "3b18"
+   * Creates a blob object from a file and writes it to .git/objects.
+   * Returns the raw 20-byte SHA-1 hash.
    */
-  private static String bytesToHexString(byte[] bytes) {
-    StringBuilder sb = new StringBuilder();
-    for (byte b : bytes) {
-      sb.append(String.format("%02x", b));
-    }
-    return sb.toString();
+  private static byte[] writeBlob(File file, BlobHasher hasher) throws IOException {
+    // Streamed from disk, so the file never has to fit in memory
+    return hasher.hash(file);
   }
   
   /**
-   * Converts a hex string to a byte array.
-   * Example: "3b18" -> [0x3b, 0x18]
+   * Hashes what's on stdin as a blob. The size has to be known before the header
+   * can be hashed, so stdin is spooled to a temp file first instead of into memory.
    */
-  private static byte[] hexStringToBytes(String hex) {
-    byte[] bytes = new byte[hex.length() / 2];
-    for (int i = 0; i < bytes.length; i++) {
-      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+  private static byte[] hashStdin(BlobHasher hasher) throws IOException {
+    File spool = File.createTempFile("hash-object-stdin", null);
+    try {
+      Files.copy(System.in, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return hasher.hash(spool);
+    } finally {
+      spool.delete();
     }
-    return bytes;
   }
   
-  // Helper method to read all bytes from an InputStream (Java 8 compatible)
-  private static byte[] readAllBytes(InputStream inputStream) throws IOException {
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    byte[] data = new byte[1024];
-    int bytesRead;
-    while ((bytesRead = inputStream.read(data, 0, data.length)) != -1) {
-      buffer.write(data, 0, bytesRead);
-    }
-    return buffer.toByteArray();
+  /**
+   * Creates the writer for the loose objects of the repository in the working directory,
+   * with the durability chosen through GIT_FSYNC.
+   */
+  private static LooseObjectWriter newObjectWriter() {
+    return new LooseObjectWriter(resolve(".git/objects"), LooseObjectWriter.Durability.fromEnvironment());
   }
 }
@@ -0,0 +1,273 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * All objects of a repository: loose ones under .git/objects/xx/ and the ones
+ * in every pack under .git/objects/pack.
+ * Packed objects are found through the memory-mapped .idx of each pack and then
+ * inflated (with deltas resolved) straight from the memory-mapped .pack.
+ *
+ * Open one with open(). In a long-running process (see keepOpen()) databases stay
+ * open between commands, keeping their mappings and delta base caches.
+ */
+class ObjectDatabase implements Closeable {
+  // Shared by all packs (same default as git's core.deltaBaseCacheLimit)
+  private static final long DELTA_BASE_CACHE_BYTES = 96L * 1024 * 1024;
+
+  // Open databases by .git directory, once keepOpen() was called
+  private static Map<File, ObjectDatabase> openDatabases = null;
+
+  private final File objectsDir;
+  private final boolean shared;
+  private final List<Pack> packs = new ArrayList<Pack>();
+
+  /**
+   * One pack with its index.
+   */
+  private static class Pack {
+    final File indexFile;
+    final PackIndex index;
+    final PackFile file;
+    final PackReader reader;
+
+    Pack(File indexFile, PackIndex index, PackFile file, long cacheBytes) {
+      this.indexFile = indexFile;
+      this.index = index;
+      this.file = file;
+      this.reader = new PackReader(file, index::find, new DeltaBaseCache(cacheBytes));
+    }
+  }
+
+  /**
+   * Opens the object database of the given .git directory.
+   * Once keepOpen() was called this returns the database that is already open, after
+   * picking up packs that were added or removed since, and close() leaves it open.
+   */
+  static synchronized ObjectDatabase open(File gitDir) throws IOException {
+    if (openDatabases == null) {
+      return new ObjectDatabase(gitDir, false);
+    }
+
+    File key = gitDir.getCanonicalFile();
+    ObjectDatabase db = openDatabases.get(key);
+    if (db == null) {
+      db = new ObjectDatabase(key, true);
+      openDatabases.put(key, db);
+    } else {
+      db.rescan();
+    }
+    return db;
+  }
+
+  /**
+   * Makes open() keep databases open for the rest of the process.
+   */
+  static synchronized void keepOpen() {
+    if (openDatabases == null) {
+      openDatabases = new HashMap<File, ObjectDatabase>();
+    }
+  }
+
+  private ObjectDatabase(File gitDir, boolean shared) throws IOException {
+    this.objectsDir = new File(gitDir, "objects");
+    this.shared = shared;
+    rescan();
+  }
+
+  /**
+   * Maps packs that aren't mapped yet and drops the ones whose .idx is gone.
+   */
+  private void rescan() throws IOException {
+    File[] indexes = new File(objectsDir, "pack").listFiles((dir, name) -> name.endsWith(".idx"));
+    if (indexes == null) {
+      indexes = new File[0];
+    }
+
+    // Newest packs first, like git: recent objects are looked up the most
+    Arrays.sort(indexes, Comparator.comparingLong(File::lastModified).reversed());
+
+    List<Pack> scanned = new ArrayList<Pack>();
+    long cacheBytes = DELTA_BASE_CACHE_BYTES / Math.max(1, indexes.length);
+    for (File idx : indexes) {
+      Pack known = null;
+      for (Pack pack : packs) {
+        if (pack.indexFile.equals(idx)) {
+          known = pack;
+        }
+      }
+
+      String name = idx.getName();
+      File packFile = new File(idx.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+      if (known != null) {
+        scanned.add(known);
+      } else if (packFile.isFile()) {
+        scanned.add(new Pack(idx, new PackIndex(idx), new PackFile(packFile), cacheBytes));
+      }
+    }
+
+    for (Pack pack : packs) {
+      if (!scanned.contains(pack)) {
+        closePack(pack);
+      }
+    }
+    packs.clear();
+    packs.addAll(scanned);
+  }
+
+  /**
+   * Reads an object by its 40-character hex id.
+   * Returns null if the repository doesn't have it.
+   */
+  GitObject read(String hex) throws IOException, DataFormatException {
+    return read(ObjectId.fromHex(hex).toRaw(), 0);
+  }
+
+  /**
+   * Reads the object whose 20-byte id starts at id[idOffset].
+   * Returns null if the repository doesn't have it.
+   */
+  GitObject read(byte[] id, int idOffset) throws IOException, DataFormatException {
+    for (Pack pack : packs) {
+      long offset = pack.index.find(id, idOffset);
+      if (offset >= 0) {
+        return pack.reader.read(offset);
+      }
+    }
+
+    File file = looseFile(id, idOffset);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (InflaterInputStream in = new InflaterInputStream(new FileInputStream(file))) {
+      ObjectHeader header = readLooseHeader(in);
+      byte[] data = in.readNBytes(checkedSize(header));
+      if (data.length != header.size || in.read() != -1) {
+        throw new IOException("Object " + file + " doesn't match its header size " + header.size);
+      }
+      return new GitObject(header.type, data);
+    }
+  }
+
+  /**
+   * Reads only the type and size of an object by its 40-character hex id.
+   * Returns null if the repository doesn't have it.
+   */
+  ObjectHeader readHeader(String hex) throws IOException, DataFormatException {
+    return readHeader(ObjectId.fromHex(hex).toRaw(), 0);
+  }
+
+  /**
+   * Reads only the type and size of the object whose 20-byte id starts at id[idOffset].
+   * Returns null if the repository doesn't have it.
+   */
+  ObjectHeader readHeader(byte[] id, int idOffset) throws IOException, DataFormatException {
+    for (Pack pack : packs) {
+      long offset = pack.index.find(id, idOffset);
+      if (offset >= 0) {
+        return pack.reader.readHeader(offset);
+      }
+    }
+
+    File file = looseFile(id, idOffset);
+    if (!file.isFile()) {
+      return null;
+    }
+    // Only the first inflated bytes are needed for the header
+    try (InflaterInputStream in = new InflaterInputStream(new FileInputStream(file))) {
+      return readLooseHeader(in);
+    }
+  }
+
+  /**
+   * Writes the content of an object to out without holding all of it in memory.
+   * Returns false if the repository doesn't have the object.
+   */
+  boolean copyTo(String hex, OutputStream out) throws IOException, DataFormatException {
+    byte[] id = ObjectId.fromHex(hex).toRaw();
+    for (Pack pack : packs) {
+      long offset = pack.index.find(id, 0);
+      if (offset >= 0) {
+        pack.reader.copyTo(offset, out);
+        return true;
+      }
+    }
+
+    File file = looseFile(id, 0);
+    if (!file.isFile()) {
+      return false;
+    }
+    try (InflaterInputStream in = new InflaterInputStream(new FileInputStream(file))) {
+      ObjectHeader header = readLooseHeader(in);
+      if (in.transferTo(out) != header.size) {
+        throw new IOException("Object " + file + " doesn't match its header size " + header.size);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the path of a loose object: .git/objects/<first2chars>/<rest>.
+   */
+  private File looseFile(byte[] id, int idOffset) {
+    String hex = ObjectId.toHex(id, idOffset);
+    return new File(objectsDir, hex.substring(0, 2) + "/" + hex.substring(2));
+  }
+
+  /**
+   * Reads the "<type> <size>\0" header at the start of an inflated loose object.
+   * Leaves the stream positioned at the first byte of content.
+   */
+  private static ObjectHeader readLooseHeader(InputStream in) throws IOException {
+    StringBuilder type = new StringBuilder();
+    int b;
+    while ((b = in.read()) != ' ') {
+      if (b < 0 || type.length() > 16) {
+        throw new IOException("Bad loose object header");
+      }
+      type.append((char) b);
+    }
+
+    long size = 0;
+    while ((b = in.read()) != 0) {
+      if (b < '0' || b > '9') {
+        throw new IOException("Bad loose object header");
+      }
+      size = size * 10 + (b - '0');
+    }
+    return new ObjectHeader(type.toString(), size);
+  }
+
+  private static int checkedSize(ObjectHeader header) throws IOException {
+    if (header.size > Integer.MAX_VALUE - 8) {
+      throw new IOException("Object too large to read into memory: " + header.size + " bytes");
+    }
+    return (int) header.size;
+  }
+
+  private static void closePack(Pack pack) throws IOException {
+    pack.index.close();
+    pack.file.close();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (shared) {
+      return;  // Stays open for the next command
+    }
+    for (Pack pack : packs) {
+      closePack(pack);
+    }
+  }
+}
@@ -0,0 +1,12 @@
+/**
+ * An object's type and the size of its content, known without reading the content.
+ */
+class ObjectHeader {
+  final String type;
+  final long size;
+
+  ObjectHeader(String type, long size) {
+    this.type = type;
+    this.size = size;
+  }
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A 20-byte SHA-1 object id, held in five int fields instead of an array or a hex String.
+ * Immutable, so it can be used as a map key; hashCode() is the first four bytes,
+ * which are already uniformly distributed.
+ *
+ * The hex codec is table-driven and doesn't create intermediate Strings, and the
+ * static helpers read and write ids directly in tree, pack and index buffers.
+ */
+final class ObjectId implements Comparable<ObjectId> {
+  static final int RAW_LENGTH = 20;
+  static final int HEX_LENGTH = 40;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // Value of each hex digit by character, -1 for everything else
+  private static final byte[] HEX_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(HEX_VALUES, (byte) -1);
+    for (int i = 0; i < 10; i++) {
+      HEX_VALUES['0' + i] = (byte) i;
+    }
+    for (int i = 0; i < 6; i++) {
+      HEX_VALUES['a' + i] = (byte) (10 + i);
+      HEX_VALUES['A' + i] = (byte) (10 + i);
+    }
+  }
+
+  private final int w0;
+  private final int w1;
+  private final int w2;
+  private final int w3;
+  private final int w4;
+
+  private ObjectId(int w0, int w1, int w2, int w3, int w4) {
+    this.w0 = w0;
+    this.w1 = w1;
+    this.w2 = w2;
+    this.w3 = w3;
+    this.w4 = w4;
+  }
+
+  /**
+   * Reads the id whose 20 raw bytes start at buffer[offset].
+   */
+  static ObjectId fromRaw(byte[] buffer, int offset) {
+    return new ObjectId(readInt(buffer, offset), readInt(buffer, offset + 4), readInt(buffer, offset + 8),
+        readInt(buffer, offset + 12), readInt(buffer, offset + 16));
+  }
+
+  static ObjectId fromRaw(byte[] raw) {
+    return fromRaw(raw, 0);
+  }
+
+  /**
+   * Parses a 40-character hex id (either case).
+   */
+  static ObjectId fromHex(CharSequence hex) {
+    if (!isHex(hex)) {
+      throw new IllegalArgumentException("Not a valid object name: " + hex);
+    }
+    return new ObjectId(parseWord(hex, 0), parseWord(hex, 8), parseWord(hex, 16),
+        parseWord(hex, 24), parseWord(hex, 32));
+  }
+
+  /**
+   * Checks whether a name is a full 40-character hex object id.
+   */
+  static boolean isHex(CharSequence name) {
+    if (name.length() != HEX_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < HEX_LENGTH; i++) {
+      char c = name.charAt(i);
+      if (c >= 128 || HEX_VALUES[c] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Encodes the 20 raw bytes starting at buffer[offset] as lowercase hex.
+   */
+  static String toHex(byte[] buffer, int offset) {
+    char[] hex = new char[HEX_LENGTH];
+    for (int i = 0; i < RAW_LENGTH; i++) {
+      int b = buffer[offset + i];
+      hex[i * 2] = HEX_DIGITS[(b >> 4) & 0xF];
+      hex[i * 2 + 1] = HEX_DIGITS[b & 0xF];
+    }
+    return new String(hex);
+  }
+
+  static String toHex(byte[] raw) {
+    return toHex(raw, 0);
+  }
+
+  /**
+   * Writes the 20 raw bytes starting at buffer[offset] to out as 40 lowercase hex characters.
+   */
+  static void writeHex(byte[] buffer, int offset, OutputStream out) throws IOException {
+    for (int i = offset; i < offset + RAW_LENGTH; i++) {
+      out.write(HEX_DIGITS[(buffer[i] >> 4) & 0xF]);
+      out.write(HEX_DIGITS[buffer[i] & 0xF]);
+    }
+  }
+
+  /**
+   * Copies the 20 raw bytes into buffer at offset.
+   */
+  void copyRawTo(byte[] buffer, int offset) {
+    writeInt(buffer, offset, w0);
+    writeInt(buffer, offset + 4, w1);
+    writeInt(buffer, offset + 8, w2);
+    writeInt(buffer, offset + 12, w3);
+    writeInt(buffer, offset + 16, w4);
+  }
+
+  byte[] toRaw() {
+    byte[] raw = new byte[RAW_LENGTH];
+    copyRawTo(raw, 0);
+    return raw;
+  }
+
+  /**
+   * Returns the id as 40 lowercase hex characters.
+   */
+  String name() {
+    char[] hex = new char[HEX_LENGTH];
+    formatWord(hex, 0, w0);
+    formatWord(hex, 8, w1);
+    formatWord(hex, 16, w2);
+    formatWord(hex, 24, w3);
+    formatWord(hex, 32, w4);
+    return new String(hex);
+  }
+
+  @Override
+  public String toString() {
+    return name();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof ObjectId)) {
+      return false;
+    }
+    ObjectId id = (ObjectId) other;
+    return w0 == id.w0 && w1 == id.w1 && w2 == id.w2 && w3 == id.w3 && w4 == id.w4;
+  }
+
+  @Override
+  public int hashCode() {
+    return w0;
+  }
+
+  /**
+   * Orders ids by their raw bytes, unsigned, like pack indexes do.
+   */
+  @Override
+  public int compareTo(ObjectId other) {
+    int c = Integer.compareUnsigned(w0, other.w0);
+    if (c == 0) c = Integer.compareUnsigned(w1, other.w1);
+    if (c == 0) c = Integer.compareUnsigned(w2, other.w2);
+    if (c == 0) c = Integer.compareUnsigned(w3, other.w3);
+    if (c == 0) c = Integer.compareUnsigned(w4, other.w4);
+    return c;
+  }
+
+  private static int parseWord(CharSequence hex, int start) {
+    int word = 0;
+    for (int i = start; i < start + 8; i++) {
+      word = (word << 4) | HEX_VALUES[hex.charAt(i)];
+    }
+    return word;
+  }
+
+  private static void formatWord(char[] hex, int start, int word) {
+    for (int i = 7; i >= 0; i--) {
+      hex[start + i] = HEX_DIGITS[word & 0xF];
+      word >>>= 4;
+    }
+  }
+
+  private static int readInt(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+        | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+  }
+
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >>> 24);
+    buffer[offset + 1] = (byte) (value >>> 16);
+    buffer[offset + 2] = (byte) (value >>> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+}
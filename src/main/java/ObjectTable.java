@@ -0,0 +1,116 @@
+/**
+ * Maps 20-byte binary object ids to the offset of the object in a pack.
+ *
+ * The table uses open addressing with linear probing over flat primitive arrays:
+ * one byte[] holds all the ids back to back and one long[] holds the offsets.
+ * An entry costs 28 bytes plus free slots, with no String key, map node or object
+ * payload. Content is read back from the pack when it's needed.
+ */
+class ObjectTable {
+  private static final int ID_LENGTH = 20;
+  private static final float LOAD_FACTOR = 0.7f;
+
+  // Offset 0 is the pack signature, never an object, so it marks a free slot
+  private static final long FREE = 0;
+
+  private byte[] ids;
+  private long[] offsets;
+  private int size = 0;
+
+  ObjectTable(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  /**
+   * Grows the table so it can hold expectedSize objects without rehashing.
+   */
+  synchronized void ensureCapacity(int expectedSize) {
+    int capacity = capacityFor(expectedSize);
+    if (capacity > offsets.length) {
+      rehash(capacity);
+    }
+  }
+
+  /**
+   * Records the pack offset of the object whose id starts at id[idOffset].
+   */
+  synchronized void put(byte[] id, int idOffset, long offset) {
+    if (offset == FREE) {
+      throw new IllegalArgumentException("Invalid pack offset: " + offset);
+    }
+    if (size + 1 > offsets.length * LOAD_FACTOR) {
+      rehash(offsets.length * 2);
+    }
+
+    int slot = findSlot(id, idOffset);
+    if (offsets[slot] == FREE) {
+      System.arraycopy(id, idOffset, ids, slot * ID_LENGTH, ID_LENGTH);
+      size++;
+    }
+    offsets[slot] = offset;
+  }
+
+  /**
+   * Returns the pack offset of the object whose id starts at id[idOffset], or -1 if it isn't known.
+   */
+  synchronized long get(byte[] id, int idOffset) {
+    int slot = findSlot(id, idOffset);
+    return offsets[slot] == FREE ? -1 : offsets[slot];
+  }
+
+  /**
+   * Finds the slot holding the given id, or the free slot where it would go.
+   */
+  private int findSlot(byte[] id, int idOffset) {
+    int mask = offsets.length - 1;
+    int slot = hash(id, idOffset) & mask;
+    while (offsets[slot] != FREE && !idEquals(slot, id, idOffset)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean idEquals(int slot, byte[] id, int idOffset) {
+    int base = slot * ID_LENGTH;
+    for (int i = 0; i < ID_LENGTH; i++) {
+      if (ids[base + i] != id[idOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * SHA-1 output is already uniformly distributed, so the first 4 bytes make a good hash.
+   */
+  private static int hash(byte[] id, int idOffset) {
+    return ((id[idOffset] & 0xFF) << 24) | ((id[idOffset + 1] & 0xFF) << 16)
+        | ((id[idOffset + 2] & 0xFF) << 8) | (id[idOffset + 3] & 0xFF);
+  }
+
+  private void rehash(int capacity) {
+    byte[] oldIds = ids;
+    long[] oldOffsets = offsets;
+    allocate(capacity);
+    for (int slot = 0; slot < oldOffsets.length; slot++) {
+      if (oldOffsets[slot] != FREE) {
+        int newSlot = findSlot(oldIds, slot * ID_LENGTH);
+        System.arraycopy(oldIds, slot * ID_LENGTH, ids, newSlot * ID_LENGTH, ID_LENGTH);
+        offsets[newSlot] = oldOffsets[slot];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    ids = new byte[capacity * ID_LENGTH];
+    offsets = new long[capacity];
+  }
+
+  /**
+   * Returns the smallest power of two that holds expectedSize entries under the load factor.
+   */
+  private static int capacityFor(int expectedSize) {
+    int needed = (int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+    return Math.max(16, Integer.highestOneBit(needed - 1) << 1);
+  }
+}
@@ -0,0 +1,121 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only, memory-mapped view of a packfile on disk.
+ * The file is mapped in 1 GB segments, so the pack never has to fit in the heap
+ * and all offsets are longs, so packs larger than 2 GB work too.
+ * Reads only use absolute positions, so one PackFile can be shared by several threads.
+ */
+class PackFile implements Closeable {
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+  private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private final FileChannel channel;
+  private final long length;
+  private final MappedByteBuffer[] segments;
+
+  PackFile(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    length = channel.size();
+
+    segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+    for (int i = 0; i < segments.length; i++) {
+      long start = i * SEGMENT_SIZE;
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+    }
+  }
+
+  /**
+   * Returns the size of the pack in bytes.
+   */
+  long length() {
+    return length;
+  }
+
+  /**
+   * Returns the unsigned byte at the given position.
+   */
+  int byteAt(long position) throws IOException {
+    return segment(position).get((int) (position & SEGMENT_MASK)) & 0xFF;
+  }
+
+  /**
+   * Reads a 4-byte big-endian integer at the given position.
+   */
+  int intAt(long position) throws IOException {
+    return (byteAt(position) << 24) | (byteAt(position + 1) << 16)
+        | (byteAt(position + 2) << 8) | byteAt(position + 3);
+  }
+
+  /**
+   * Copies len bytes starting at the given position into dst.
+   */
+  void read(long position, byte[] dst, int offset, int len) throws IOException {
+    while (len > 0) {
+      ByteBuffer chunk = slice(position, len);
+      int count = chunk.remaining();
+      chunk.get(dst, offset, count);
+      position += count;
+      offset += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Computes the CRC32 of len bytes starting at the given position.
+   */
+  int crc32(long position, long len) throws IOException {
+    CRC32 crc = new CRC32();
+    while (len > 0) {
+      ByteBuffer chunk = slice(position, len);
+      int count = chunk.remaining();
+      crc.update(chunk);
+      position += count;
+      len -= count;
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Hands the inflater the bytes starting at the given position, up to the end of its segment.
+   * Returns how many bytes were given, so the caller knows where the next chunk starts.
+   */
+  int setInput(Inflater inflater, long position) throws IOException {
+    ByteBuffer chunk = slice(position, Long.MAX_VALUE);
+    int count = chunk.remaining();
+    inflater.setInput(chunk);
+    return count;
+  }
+
+  /**
+   * Returns a view of at most len bytes from the given position, stopping at the end of a segment.
+   */
+  private ByteBuffer slice(long position, long len) throws IOException {
+    MappedByteBuffer segment = segment(position);
+    int start = (int) (position & SEGMENT_MASK);
+    int count = (int) Math.min(len, segment.limit() - start);
+    return segment.slice(start, count);
+  }
+
+  private MappedByteBuffer segment(long position) throws IOException {
+    if (position < 0 || position >= length) {
+      throw new EOFException("Read past end of pack at offset " + position);
+    }
+    return segments[(int) (position >>> SEGMENT_SHIFT)];
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,117 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a version 2 pack index (.idx), memory-mapped.
+ * The fanout table narrows a lookup down to the SHAs sharing the first byte,
+ * then a binary search finds the object, so a lookup touches only a few pages.
+ * See PackIndexWriter for the layout.
+ */
+class PackIndex implements Closeable {
+  private static final int MAGIC = 0xff744f63;
+  private static final int FANOUT_START = 8;
+  private static final int ID_LENGTH = 20;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int objectCount;
+
+  // Where each table starts
+  private final int shaStart;
+  private final int offsetStart;
+  private final int largeOffsetStart;
+
+  PackIndex(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      channel.close();
+      throw new IOException("Pack index too large: " + file);
+    }
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+    if (size < FANOUT_START + 256 * 4 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != 2) {
+      channel.close();
+      throw new IOException("Not a version 2 pack index: " + file);
+    }
+
+    objectCount = buffer.getInt(FANOUT_START + 255 * 4);
+    shaStart = FANOUT_START + 256 * 4;
+    // The CRC32 table between the ids and the offsets is only needed to verify a pack
+    offsetStart = shaStart + objectCount * (ID_LENGTH + 4);
+    largeOffsetStart = offsetStart + objectCount * 4;
+  }
+
+  /**
+   * Returns the pack offset of the object whose id starts at id[idOffset], or -1 if it isn't in this pack.
+   */
+  long find(byte[] id, int idOffset) {
+    int first = id[idOffset] & 0xFF;
+    int low = first == 0 ? 0 : buffer.getInt(FANOUT_START + (first - 1) * 4);
+    int high = buffer.getInt(FANOUT_START + first * 4);
+
+    // Binary search over [low, high)
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareId(mid, id, idOffset);
+      if (cmp == 0) {
+        return offsetAt(mid);
+      } else if (cmp < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns whether every object in this index is also in other.
+   */
+  boolean isCoveredBy(PackIndex other) {
+    byte[] id = new byte[ID_LENGTH];
+    for (int i = 0; i < objectCount; i++) {
+      buffer.get(shaStart + i * ID_LENGTH, id, 0, ID_LENGTH);
+      if (other.find(id, 0) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the pack offset of the index-th object (in SHA order).
+   */
+  long offsetAt(int index) {
+    int offset = buffer.getInt(offsetStart + index * 4);
+    if ((offset & 0x80000000) == 0) {
+      return offset;
+    }
+    // MSB set: the rest is an index into the 8-byte offset table
+    return buffer.getLong(largeOffsetStart + (offset & 0x7FFFFFFF) * 8);
+  }
+
+  /**
+   * Compares the index-th id with the one at id[idOffset], as unsigned bytes.
+   */
+  private int compareId(int index, byte[] id, int idOffset) {
+    int base = shaStart + index * ID_LENGTH;
+    for (int i = 0; i < ID_LENGTH; i++) {
+      int a = buffer.get(base + i) & 0xFF;
+      int b = id[idOffset + i] & 0xFF;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,105 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a version 2 pack index (.idx) for a packfile.
+ *
+ * Layout:
+ *   magic "\377tOc", version 2
+ *   fanout: 256 counts of objects whose first SHA byte is <= i
+ *   sorted SHAs, then a CRC32 per object, then a 4-byte offset per object
+ *   8-byte offsets for objects past 2 GB (4-byte entry has the MSB set)
+ *   pack checksum, then the checksum of the index itself
+ */
+class PackIndexWriter {
+  private static final int MAGIC = 0xff744f63;
+  private static final int VERSION = 2;
+
+  /**
+   * One object in the pack: its SHA, where it starts and the CRC32 of its packed bytes.
+   */
+  static class Entry {
+    final byte[] sha;
+    final long offset;
+    final int crc32;
+
+    Entry(byte[] sha, long offset, int crc32) {
+      this.sha = sha;
+      this.offset = offset;
+      this.crc32 = crc32;
+    }
+  }
+
+  /**
+   * Writes the index for the given entries to a file.
+   */
+  static void write(File file, List<Entry> entries, byte[] packChecksum)
+      throws IOException, NoSuchAlgorithmException {
+    // Entries must be sorted by SHA (as unsigned bytes)
+    List<Entry> sorted = new ArrayList<Entry>(entries);
+    sorted.sort((a, b) -> Arrays.compareUnsigned(a.sha, b.sha));
+
+    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+    BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
+    DigestOutputStream digestStream = new DigestOutputStream(bos, sha1);
+    DataOutputStream out = new DataOutputStream(digestStream);
+
+    try {
+      // Header
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      // Fanout table
+      int[] counts = new int[256];
+      for (Entry entry : sorted) {
+        counts[entry.sha[0] & 0xFF]++;
+      }
+      int total = 0;
+      for (int i = 0; i < 256; i++) {
+        total += counts[i];
+        out.writeInt(total);
+      }
+
+      // SHAs
+      for (Entry entry : sorted) {
+        out.write(entry.sha);
+      }
+
+      // CRC32s
+      for (Entry entry : sorted) {
+        out.writeInt(entry.crc32);
+      }
+
+      // 4-byte offsets; large ones point into the 8-byte table
+      List<Long> largeOffsets = new ArrayList<Long>();
+      for (Entry entry : sorted) {
+        if (entry.offset < 0x80000000L) {
+          out.writeInt((int) entry.offset);
+        } else {
+          out.writeInt(0x80000000 | largeOffsets.size());
+          largeOffsets.add(entry.offset);
+        }
+      }
+      for (long offset : largeOffsets) {
+        out.writeLong(offset);
+      }
+
+      // Trailer: pack checksum, then checksum of everything written so far
+      out.write(packChecksum);
+      out.flush();
+      digestStream.on(false);
+      bos.write(sha1.digest());
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates zlib streams out of a pack in a single pass.
+ * Each thread reuses one native Inflater, the output buffer is sized from the
+ * object header, and the number of compressed bytes read is kept for the caller.
+ */
+class PackInflater {
+  private static final ThreadLocal<PackInflater> CURRENT = ThreadLocal.withInitial(PackInflater::new);
+
+  private final Inflater inflater = new Inflater();
+
+  // Used to check that nothing is left once the output buffer is full
+  private final byte[] overflow = new byte[1];
+
+  // Output for streams that are only being skipped over or copied out
+  private final byte[] scratch = new byte[8192];
+
+  private long bytesConsumed;
+
+  private PackInflater() {
+  }
+
+  /**
+   * Returns the inflater for the current thread.
+   */
+  static PackInflater get() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Inflates the stream starting at the given position into a buffer of exactly size bytes.
+   * Afterwards bytesConsumed() tells how many compressed bytes the stream used.
+   */
+  byte[] inflate(PackFile pack, long position, long size) throws IOException, DataFormatException {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new DataFormatException("Object too large to inflate: " + size + " bytes");
+    }
+
+    inflater.reset();
+    byte[] out = new byte[(int) size];
+    int written = 0;
+    long inputPosition = position;
+
+    while (!inflater.finished()) {
+      if (inflater.needsInput()) {
+        inputPosition += pack.setInput(inflater, inputPosition);
+      }
+      if (inflater.needsDictionary()) {
+        throw new DataFormatException("Unexpected zlib dictionary at offset " + position);
+      }
+
+      if (written < out.length) {
+        written += inflater.inflate(out, written, out.length - written);
+      } else if (inflater.inflate(overflow) > 0) {
+        throw new DataFormatException("Object at offset " + position + " is larger than " + size + " bytes");
+      }
+    }
+
+    if (written != out.length) {
+      throw new DataFormatException("Object at offset " + position + " is " + written
+          + " bytes, expected " + size);
+    }
+    bytesConsumed = inflater.getBytesRead();
+    return out;
+  }
+
+  /**
+   * Inflates the start of the stream at the given position into out, stopping once it is full.
+   * Returns how many bytes were written, which is less than out.length only for shorter streams.
+   */
+  int inflatePrefix(PackFile pack, long position, byte[] out) throws IOException, DataFormatException {
+    inflater.reset();
+    int written = 0;
+    long inputPosition = position;
+
+    while (written < out.length && !inflater.finished()) {
+      if (inflater.needsInput()) {
+        inputPosition += pack.setInput(inflater, inputPosition);
+      }
+      if (inflater.needsDictionary()) {
+        throw new DataFormatException("Unexpected zlib dictionary at offset " + position);
+      }
+      written += inflater.inflate(out, written, out.length - written);
+    }
+    return written;
+  }
+
+  /**
+   * Inflates the stream starting at the given position straight into out through a fixed buffer.
+   * Fails if the stream doesn't inflate to exactly size bytes.
+   */
+  void copyTo(PackFile pack, long position, long size, OutputStream out) throws IOException, DataFormatException {
+    inflater.reset();
+    long written = 0;
+    long inputPosition = position;
+
+    while (!inflater.finished()) {
+      if (inflater.needsInput()) {
+        inputPosition += pack.setInput(inflater, inputPosition);
+      }
+      if (inflater.needsDictionary()) {
+        throw new DataFormatException("Unexpected zlib dictionary at offset " + position);
+      }
+      int count = inflater.inflate(scratch);
+      written += count;
+      if (written > size) {
+        throw new DataFormatException("Object at offset " + position + " is larger than " + size + " bytes");
+      }
+      out.write(scratch, 0, count);
+    }
+
+    if (written != size) {
+      throw new DataFormatException("Object at offset " + position + " is " + written
+          + " bytes, expected " + size);
+    }
+    bytesConsumed = inflater.getBytesRead();
+  }
+
+  /**
+   * Inflates the stream starting at the given position without keeping the output.
+   * Returns how many compressed bytes the stream used.
+   */
+  long skip(PackFile pack, long position) throws IOException, DataFormatException {
+    inflater.reset();
+    long inputPosition = position;
+
+    while (!inflater.finished()) {
+      if (inflater.needsInput()) {
+        inputPosition += pack.setInput(inflater, inputPosition);
+      }
+      if (inflater.needsDictionary()) {
+        throw new DataFormatException("Unexpected zlib dictionary at offset " + position);
+      }
+      inflater.inflate(scratch);
+    }
+
+    bytesConsumed = inflater.getBytesRead();
+    return bytesConsumed;
+  }
+
+  /**
+   * Returns how many compressed bytes the last call to inflate() read.
+   */
+  long bytesConsumed() {
+    return bytesConsumed;
+  }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Reads objects out of a pack by offset, resolving delta chains.
+ * Resolved objects go through a DeltaBaseCache, so a chain is only walked once.
+ * When several deltas of a chain have to be applied, they are composed and the
+ * object is built in one pass, without building the versions in between.
+ */
+class PackReader {
+  /**
+   * Finds where a REF_DELTA base lives in the same pack.
+   */
+  interface BaseLocator {
+    /**
+     * Returns the pack offset of the object whose id starts at id[idOffset], or -1.
+     */
+    long find(byte[] id, int idOffset) throws IOException;
+  }
+
+  // Enough inflated delta bytes to hold its base size and result size varints
+  private static final int DELTA_HEADER_LENGTH = 20;
+
+  private final PackFile pack;
+  private final BaseLocator bases;
+  private final DeltaBaseCache cache;
+
+  /**
+   * The header of one pack entry: its type, the size of its inflated data,
+   * where that data starts and, for deltas, where the base is.
+   */
+  private static class Entry {
+    long offset;
+    int type;
+    long size;
+    long dataStart;
+    long baseOffset = -1;
+  }
+
+  PackReader(PackFile pack, BaseLocator bases, DeltaBaseCache cache) {
+    this.pack = pack;
+    this.bases = bases;
+    this.cache = cache;
+  }
+
+  PackFile pack() {
+    return pack;
+  }
+
+  /**
+   * Gets the type and data of the object at a given offset in the pack.
+   */
+  GitObject read(long offset) throws IOException, DataFormatException {
+    GitObject cached = cache.get(offset);
+    if (cached != null) {
+      return cached;
+    }
+
+    // Walk down the chain to a cached object or a whole one
+    List<Entry> chain = new ArrayList<Entry>();
+    Entry entry = readEntry(offset);
+    GitObject base = null;
+    while (entry.baseOffset >= 0) {
+      chain.add(entry);
+      base = cache.get(entry.baseOffset);
+      if (base != null) {
+        break;
+      }
+      entry = readEntry(entry.baseOffset);
+    }
+
+    PackInflater inflater = PackInflater.get();
+    if (base == null) {
+      byte[] data = inflater.inflate(pack, entry.dataStart, entry.size);
+      base = cache.put(entry.offset, typeName(entry.type), data);
+      if (chain.isEmpty()) {
+        return base;
+      }
+    }
+
+    // The deltas, from the one against base up to the requested object
+    List<byte[]> deltas = new ArrayList<byte[]>(chain.size());
+    for (int i = chain.size() - 1; i >= 0; i--) {
+      deltas.add(inflater.inflate(pack, chain.get(i).dataStart, chain.get(i).size));
+    }
+    byte[] data = deltas.size() == 1
+        ? Delta.apply(base.data, deltas.get(0))
+        : Delta.applyChain(base.data, deltas);
+    return cache.put(offset, base.type, data);
+  }
+
+  /**
+   * Gets the type and size of the object at a given offset without inflating its content.
+   * For deltas only the size header of the delta is inflated and the chain is walked
+   * through entry headers to find the type.
+   */
+  ObjectHeader readHeader(long offset) throws IOException, DataFormatException {
+    GitObject cached = cache.get(offset);
+    if (cached != null) {
+      return new ObjectHeader(cached.type, cached.data.length);
+    }
+
+    Entry entry = readEntry(offset);
+    if (entry.baseOffset < 0) {
+      return new ObjectHeader(typeName(entry.type), entry.size);
+    }
+
+    byte[] deltaHeader = new byte[DELTA_HEADER_LENGTH];
+    PackInflater.get().inflatePrefix(pack, entry.dataStart, deltaHeader);
+    long size = Delta.resultSize(deltaHeader);
+
+    while (entry.baseOffset >= 0) {
+      entry = readEntry(entry.baseOffset);
+    }
+    return new ObjectHeader(typeName(entry.type), size);
+  }
+
+  /**
+   * Writes the content of the object at a given offset to out.
+   * Whole objects are inflated straight into out through a fixed buffer; deltas
+   * have to be resolved in memory first.
+   */
+  void copyTo(long offset, OutputStream out) throws IOException, DataFormatException {
+    Entry entry = readEntry(offset);
+    if (entry.baseOffset >= 0) {
+      out.write(read(offset).data);
+    } else {
+      PackInflater.get().copyTo(pack, entry.dataStart, entry.size, out);
+    }
+  }
+
+  /**
+   * Parses the entry header at the given offset.
+   */
+  private Entry readEntry(long offset) throws IOException {
+    Entry entry = new Entry();
+    entry.offset = offset;
+    long position = offset;
+
+    int firstByte = pack.byteAt(position++);
+    entry.type = (firstByte >> 4) & 0x7;
+    long size = firstByte & 0x0F;
+    int shift = 4;
+
+    while ((firstByte & 0x80) != 0) {
+      firstByte = pack.byteAt(position++);
+      size |= ((long)(firstByte & 0x7F)) << shift;
+      shift += 7;
+    }
+    entry.size = size;
+
+    if (entry.type == 6) {
+      // OFS_DELTA
+      long deltaOffset = 0;
+      int b = pack.byteAt(position++);
+      deltaOffset = b & 0x7F;
+      while ((b & 0x80) != 0) {
+        b = pack.byteAt(position++);
+        deltaOffset = ((deltaOffset + 1) << 7) | (b & 0x7F);
+      }
+      entry.baseOffset = offset - deltaOffset;
+
+    } else if (entry.type == 7) {
+      // REF_DELTA
+      byte[] baseSha = new byte[20];
+      pack.read(position, baseSha, 0, 20);
+      position += 20;
+
+      entry.baseOffset = bases.find(baseSha, 0);
+      if (entry.baseOffset < 0) {
+        throw new IOException("Base object not found for REF_DELTA at offset " + offset);
+      }
+    }
+
+    entry.dataStart = position;
+    return entry;
+  }
+
+  /**
+   * Maps a non-delta pack object type to its name.
+   */
+  static String typeName(int type) throws IOException {
+    switch (type) {
+      case 1: return "commit";
+      case 2: return "tree";
+      case 3: return "blob";
+      case 4: return "tag";
+      default: throw new IOException("Unknown type: " + type);
+    }
+  }
+}
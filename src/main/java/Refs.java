@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the refs of a repository: loose ones under .git/refs, the ones in
+ * .git/packed-refs, and HEAD. A loose ref wins over a packed one of the same name,
+ * and symbolic refs ("ref: refs/heads/main") are followed to the id they end at.
+ */
+class Refs {
+  // How many symbolic refs are followed before giving up on a loop
+  private static final int MAX_SYMREF_DEPTH = 5;
+
+  // Where a short name like "main" is looked for, in order
+  private static final String[] SEARCH_PREFIXES = {"", "refs/", "refs/tags/", "refs/heads/", "refs/remotes/"};
+
+  private Refs() {
+  }
+
+  /**
+   * Returns every ref that points at an object, by full name, HEAD included.
+   * Refs that point nowhere yet (like HEAD before the first commit) are left out.
+   */
+  static Map<String, String> all(File gitDir) throws IOException {
+    Map<String, String> packed = readPacked(gitDir);
+    Map<String, String> refs = new TreeMap<String, String>();
+    for (Map.Entry<String, String> ref : packed.entrySet()) {
+      refs.put(ref.getKey(), ref.getValue());
+    }
+    collectLoose(gitDir, new File(gitDir, "refs"), "refs/", packed, refs);
+
+    String head = read(gitDir, "HEAD", packed, 0);
+    if (head != null) {
+      refs.put("HEAD", head);
+    }
+    return refs;
+  }
+
+  /**
+   * Resolves a name given on the command line to a 40-character hex id: an id itself,
+   * a full ref name, or a short one such as a branch or tag name.
+   * Returns null if nothing by that name exists.
+   */
+  static String resolve(File gitDir, String name) throws IOException {
+    if (ObjectId.isHex(name)) {
+      return name.toLowerCase();
+    }
+    Map<String, String> packed = readPacked(gitDir);
+    for (String prefix : SEARCH_PREFIXES) {
+      String id = read(gitDir, prefix + name, packed, 0);
+      if (id != null) {
+        return id;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reads one ref by full name, following symbolic refs. Returns null if it doesn't exist.
+   */
+  private static String read(File gitDir, String name, Map<String, String> packed, int depth)
+      throws IOException {
+    if (depth > MAX_SYMREF_DEPTH) {
+      throw new IOException("Too many levels of symbolic refs at " + name);
+    }
+    File file = new File(gitDir, name);
+    if (!file.isFile()) {
+      return packed.get(name);
+    }
+
+    String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    if (content.startsWith("ref: ")) {
+      return read(gitDir, content.substring(5).trim(), packed, depth + 1);
+    }
+    return ObjectId.isHex(content) ? content.toLowerCase() : null;
+  }
+
+  private static void collectLoose(File gitDir, File dir, String prefix, Map<String, String> packed,
+      Map<String, String> refs) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      String name = prefix + child.getName();
+      if (child.isDirectory()) {
+        collectLoose(gitDir, child, name + "/", packed, refs);
+      } else {
+        String id = read(gitDir, name, packed, 0);
+        if (id != null) {
+          refs.put(name, id);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads .git/packed-refs: "<id> <name>" lines, plus comments and "^<id>" lines
+   * with the commit an annotated tag peels to, which are skipped.
+   */
+  private static Map<String, String> readPacked(File gitDir) throws IOException {
+    Map<String, String> packed = new HashMap<String, String>();
+    File file = new File(gitDir, "packed-refs");
+    if (!file.isFile()) {
+      return packed;
+    }
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    for (String line : lines) {
+      if (line.isEmpty() || line.startsWith("#") || line.startsWith("^")) {
+        continue;
+      }
+      int space = line.indexOf(' ');
+      if (space == 40 && ObjectId.isHex(line.substring(0, 40))) {
+        packed.put(line.substring(41).trim(), line.substring(0, 40).toLowerCase());
+      }
+    }
+    return packed;
+  }
+}
@@ -0,0 +1,651 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Packs every object reachable from the refs and HEAD into one new pack, storing
+ * objects as deltas against similar ones where that makes them smaller.
+ *
+ * Delta bases are chosen the way git does: objects are sorted by type, by a hash of
+ * the name they were found under and by size, largest first, so versions of the same
+ * file end up next to each other. Each object is then tried against the last window
+ * objects before it in that order, and the smallest delta wins. The sorted list is
+ * split into one run per thread, at points where the name hash changes, and the runs
+ * are searched in parallel.
+ *
+ * Chains stay within depth deltas, and the pack is written with every base before
+ * its deltas so they can refer to it by offset (OFS_DELTA).
+ */
+class Repack {
+  static final int DEFAULT_WINDOW = 10;
+  static final int DEFAULT_DEPTH = 50;
+
+  // Objects smaller than this aren't worth a delta
+  private static final int MIN_DELTA_SIZE = 50;
+
+  // Objects larger than this are stored whole instead of read into memory for the search
+  private static final long MAX_DELTA_SIZE = 512L * 1024 * 1024;
+
+  private static final int OBJ_COMMIT = 1;
+  private static final int OBJ_TREE = 2;
+  private static final int OBJ_BLOB = 3;
+  private static final int OBJ_TAG = 4;
+  private static final int OBJ_OFS_DELTA = 6;
+
+  /**
+   * One object going into the pack.
+   */
+  private static final class Candidate {
+    final byte[] id;
+    final int type;
+    final int nameHash;
+    final long size;
+
+    Candidate base;    // Delta base, or null to store the object whole
+    byte[] delta;
+    int depth;         // How many deltas the object is from a whole one
+
+    long offset = -1;  // Where it was written in the pack
+    int crc32;
+
+    Candidate(byte[] id, int type, int nameHash, long size) {
+      this.id = id;
+      this.type = type;
+      this.nameHash = nameHash;
+      this.size = size;
+    }
+  }
+
+  /**
+   * An object in the search window, with its content and, once it was tried as a
+   * base, its delta index.
+   */
+  private static final class WindowEntry {
+    final Candidate candidate;
+    final byte[] data;
+    DeltaIndex index;
+
+    WindowEntry(Candidate candidate, byte[] data) {
+      this.candidate = candidate;
+      this.data = data;
+    }
+  }
+
+  private final File gitDir;
+  private final int window;
+  private final int depth;
+  private final int threads;
+
+  Repack(File gitDir, int window, int depth, int threads) {
+    if (window < 0 || depth < 0 || threads < 1) {
+      throw new IllegalArgumentException("window and depth can't be negative, and threads must be at least 1");
+    }
+    this.gitDir = gitDir;
+    this.window = window;
+    this.depth = depth;
+    this.threads = threads;
+  }
+
+  /**
+   * Writes the new pack. With prune, the loose objects it now holds are deleted
+   * afterwards, and so are old packs whose every object it holds. Returns the stored
+   * pack, or null if there is nothing to pack.
+   */
+  File run(boolean prune) throws Exception {
+    List<Candidate> objects;
+    File packFile;
+    List<PackIndexWriter.Entry> entries;
+    byte[] packChecksum;
+
+    try (ObjectDatabase db = ObjectDatabase.open(gitDir)) {
+      // Step 1: Everything reachable from the refs, in the order it was found
+      try (Stats.Phase phase = Stats.start("count-objects")) {
+        objects = collect(db);
+        phase.objects(objects.size());
+      }
+      if (objects.isEmpty()) {
+        System.err.println("Nothing to pack");
+        return null;
+      }
+
+      // Step 2: Find a delta base for whatever has a good one
+      try (Stats.Phase phase = Stats.start("delta-search")) {
+        phase.objects(searchDeltas(db, objects));
+      }
+
+      // Step 3: Write the pack
+      File packDir = new File(gitDir, "objects/pack");
+      packDir.mkdirs();
+      packFile = Files.createTempFile(packDir.toPath(), "tmp_pack_", null).toFile();
+      try (Stats.Phase phase = Stats.start("write-pack")) {
+        packChecksum = writePack(db, objects, packFile);
+        int maxDepth = 0;
+        for (Candidate object : objects) {
+          maxDepth = Math.max(maxDepth, object.depth);
+        }
+        phase.bytes(packFile.length()).objects(objects.size()).deltaDepth(maxDepth);
+      } catch (Exception e) {
+        packFile.delete();
+        throw e;
+      }
+    }
+
+    entries = new ArrayList<PackIndexWriter.Entry>(objects.size());
+    int deltas = 0;
+    for (Candidate object : objects) {
+      entries.add(new PackIndexWriter.Entry(object.id, object.offset, object.crc32));
+      if (object.base != null) {
+        deltas++;
+      }
+    }
+    File stored = Main.storePack(packFile, entries, packChecksum, gitDir);
+    System.err.println("Total " + objects.size() + " (delta " + deltas + ")");
+
+    if (prune) {
+      try (Stats.Phase phase = Stats.start("prune")) {
+        phase.objects(prune(stored, entries));
+      }
+    }
+    return stored;
+  }
+
+  // ============ COUNTING OBJECTS ============
+
+  /**
+   * Walks everything reachable from the refs and HEAD: commits first, then the
+   * trees and blobs of each commit's tree, each object once.
+   */
+  private List<Candidate> collect(ObjectDatabase db) throws IOException, DataFormatException {
+    Set<String> shallow = readShallow();
+    Set<ObjectId> seen = new HashSet<ObjectId>();
+    List<Candidate> objects = new ArrayList<Candidate>();
+    List<byte[]> trees = new ArrayList<byte[]>();
+
+    Deque<byte[]> pending = new ArrayDeque<byte[]>();
+    for (String id : Refs.all(gitDir).values()) {
+      pending.add(ObjectId.fromHex(id).toRaw());
+    }
+
+    // Step 1: Commits and tags, remembering the trees they point to
+    while (!pending.isEmpty()) {
+      byte[] id = pending.poll();
+      if (!seen.add(ObjectId.fromRaw(id))) {
+        continue;
+      }
+      GitObject object = read(db, id);
+      switch (object.type) {
+        case "commit": {
+          objects.add(new Candidate(id, OBJ_COMMIT, 0, object.data.length));
+          String[] lines = headerLines(object.data);
+          for (String line : lines) {
+            if (line.startsWith("tree ")) {
+              trees.add(ObjectId.fromHex(line.substring(5)).toRaw());
+            } else if (line.startsWith("parent ") && !shallow.contains(ObjectId.toHex(id))) {
+              pending.add(ObjectId.fromHex(line.substring(7)).toRaw());
+            }
+          }
+          break;
+        }
+        case "tag": {
+          objects.add(new Candidate(id, OBJ_TAG, 0, object.data.length));
+          for (String line : headerLines(object.data)) {
+            if (line.startsWith("object ")) {
+              pending.add(ObjectId.fromHex(line.substring(7)).toRaw());
+            }
+          }
+          break;
+        }
+        case "tree":
+          // A ref straight to a tree is walked along with the trees of the commits
+          seen.remove(ObjectId.fromRaw(id));
+          trees.add(id);
+          break;
+        default:
+          objects.add(new Candidate(id, OBJ_BLOB, 0, object.data.length));
+          break;
+      }
+    }
+
+    // Step 2: Trees and blobs, depth first from each root tree
+    TreeCursor cursor = new TreeCursor();
+    for (byte[] tree : trees) {
+      collectTree(db, tree, 0, seen, objects, cursor);
+    }
+    return objects;
+  }
+
+  private void collectTree(ObjectDatabase db, byte[] id, int nameHash, Set<ObjectId> seen,
+      List<Candidate> objects, TreeCursor cursor) throws IOException, DataFormatException {
+    if (!seen.add(ObjectId.fromRaw(id))) {
+      return;
+    }
+    GitObject tree = read(db, id);
+    if (!tree.type.equals("tree")) {
+      throw new IOException("Expected a tree, got a " + tree.type + ": " + ObjectId.toHex(id));
+    }
+    objects.add(new Candidate(id, OBJ_TREE, nameHash, tree.data.length));
+
+    List<byte[]> subtrees = new ArrayList<byte[]>();
+    List<Integer> subtreeHashes = new ArrayList<Integer>();
+    cursor.reset(tree.data);
+    while (cursor.next()) {
+      if (cursor.isGitlink()) {
+        continue;  // A commit in another repository
+      }
+      byte[] entryId = Arrays.copyOfRange(cursor.buffer(), cursor.idOffset(), cursor.idOffset() + 20);
+      int entryHash = nameHash(cursor.buffer(), cursor.nameOffset(), cursor.nameLength());
+      if (cursor.isTree()) {
+        subtrees.add(entryId);
+        subtreeHashes.add(entryHash);
+      } else if (seen.add(ObjectId.fromRaw(entryId))) {
+        ObjectHeader header = db.readHeader(entryId, 0);
+        if (header == null) {
+          throw new IOException("Missing object " + ObjectId.toHex(entryId));
+        }
+        objects.add(new Candidate(entryId, OBJ_BLOB, entryHash, header.size));
+      }
+    }
+
+    // The cursor is reused below, so the subtrees are walked once this tree is done
+    for (int i = 0; i < subtrees.size(); i++) {
+      collectTree(db, subtrees.get(i), subtreeHashes.get(i), seen, objects, cursor);
+    }
+  }
+
+  /**
+   * Git's hash of a path for sorting delta candidates. The last characters count the
+   * most, so files with the same name or extension sort next to each other.
+   */
+  private static int nameHash(byte[] name, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int c = name[i] & 0xFF;
+      if (c == ' ' || (c >= '\t' && c <= '\r')) {
+        continue;
+      }
+      hash = (hash >>> 2) + (c << 24);
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the header lines of a commit or tag, up to the blank line before the message.
+   */
+  private static String[] headerLines(byte[] data) {
+    String text = new String(data, StandardCharsets.UTF_8);
+    int end = text.indexOf("\n\n");
+    return (end >= 0 ? text.substring(0, end) : text).split("\n");
+  }
+
+  private Set<String> readShallow() throws IOException {
+    Set<String> shallow = new HashSet<String>();
+    File file = new File(gitDir, "shallow");
+    if (file.isFile()) {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+        if (!line.isEmpty()) {
+          shallow.add(line.trim());
+        }
+      }
+    }
+    return shallow;
+  }
+
+  private static GitObject read(ObjectDatabase db, byte[] id) throws IOException, DataFormatException {
+    GitObject object = db.read(id, 0);
+    if (object == null) {
+      throw new IOException("Missing object " + ObjectId.toHex(id));
+    }
+    return object;
+  }
+
+  // ============ DELTA SEARCH ============
+
+  /**
+   * Picks delta bases for the objects. Returns how many became deltas.
+   */
+  private int searchDeltas(ObjectDatabase db, List<Candidate> objects) {
+    if (window == 0 || depth == 0) {
+      return 0;
+    }
+
+    Candidate[] sorted = objects.toArray(new Candidate[0]);
+    Arrays.sort(sorted, Comparator.<Candidate>comparingInt(c -> c.type)
+        .thenComparing((a, b) -> Integer.compareUnsigned(a.nameHash, b.nameHash))
+        .thenComparing(Comparator.<Candidate>comparingLong(c -> c.size).reversed()));
+
+    // Step 1: One run per thread, each ending where the type or name hash changes
+    List<SearchTask> tasks = new ArrayList<SearchTask>();
+    int start = 0;
+    for (int i = 1; i <= threads && start < sorted.length; i++) {
+      int end = (int) ((long) sorted.length * i / threads);
+      while (end > start && end < sorted.length && sameGroup(sorted[end - 1], sorted[end])) {
+        end++;
+      }
+      if (end > start) {
+        tasks.add(new SearchTask(db, sorted, start, end));
+        start = end;
+      }
+    }
+
+    // Step 2: Search the runs in parallel
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new RecursiveAction() {
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+
+    int deltas = 0;
+    for (SearchTask task : tasks) {
+      deltas += task.deltas;
+    }
+    return deltas;
+  }
+
+  private static boolean sameGroup(Candidate a, Candidate b) {
+    return a.type == b.type && a.nameHash == b.nameHash;
+  }
+
+  /**
+   * Searches one run of the sorted objects, with its own window.
+   */
+  private class SearchTask extends RecursiveAction {
+    private final ObjectDatabase db;
+    private final Candidate[] sorted;
+    private final int start;
+    private final int end;
+    int deltas;
+
+    SearchTask(ObjectDatabase db, Candidate[] sorted, int start, int end) {
+      this.db = db;
+      this.sorted = sorted;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      // The last objects of the run, oldest first
+      Deque<WindowEntry> recent = new ArrayDeque<WindowEntry>(window);
+      for (int i = start; i < end; i++) {
+        Candidate target = sorted[i];
+        if (target.size < MIN_DELTA_SIZE || target.size > MAX_DELTA_SIZE) {
+          continue;
+        }
+        byte[] data;
+        try {
+          data = read(db, target.id).data;
+        } catch (IOException | DataFormatException e) {
+          throw new RuntimeException("Failed to read " + ObjectId.toHex(target.id), e);
+        }
+
+        findBase(target, data, recent);
+        if (target.base != null) {
+          deltas++;
+        }
+
+        if (recent.size() == window) {
+          recent.removeFirst();
+        }
+        recent.addLast(new WindowEntry(target, data));
+      }
+    }
+
+    /**
+     * Tries target against everything in the window, newest first, and keeps the
+     * smallest delta that is worth it.
+     */
+    private void findBase(Candidate target, byte[] data, Deque<WindowEntry> recent) {
+      for (Iterator<WindowEntry> it = recent.descendingIterator(); it.hasNext(); ) {
+        WindowEntry source = it.next();
+        Candidate base = source.candidate;
+        if (base.type != target.type || base.depth >= depth) {
+          continue;
+        }
+
+        // Like git: a delta must save at least half the object, and the allowance
+        // shrinks as the chain gets deeper, so long chains need better deltas
+        long maxSize = (target.size / 2 - 20) * (depth - base.depth) / (depth + 1);
+        if (target.delta != null) {
+          maxSize = Math.min(maxSize, target.delta.length - 1);
+        }
+        long sizeDifference = target.size - base.size;
+        if (maxSize <= 0 || sizeDifference >= maxSize || target.size < base.size / 32) {
+          continue;
+        }
+
+        if (source.index == null) {
+          source.index = new DeltaIndex(source.data);
+        }
+        byte[] delta = source.index.create(data, (int) maxSize);
+        if (delta != null) {
+          target.base = base;
+          target.delta = delta;
+          target.depth = base.depth + 1;
+        }
+      }
+    }
+  }
+
+  // ============ WRITING THE PACK ============
+
+  /**
+   * Writes the objects to file as a pack, each base before its deltas.
+   * Returns the pack checksum.
+   */
+  private byte[] writePack(ObjectDatabase db, List<Candidate> objects, File file)
+      throws IOException, DataFormatException, NoSuchAlgorithmException {
+    try (PackOutputStream out = new PackOutputStream(new FileOutputStream(file))) {
+      out.write(new byte[] {'P', 'A', 'C', 'K', 0, 0, 0, 2});
+      out.writeInt(objects.size());
+
+      Deflater deflater = new Deflater();
+      try {
+        for (Candidate object : objects) {
+          writeObject(db, object, out, deflater);
+        }
+      } finally {
+        deflater.end();
+      }
+
+      byte[] checksum = out.digest();
+      out.write(checksum);
+      return checksum;
+    }
+  }
+
+  private static void writeObject(ObjectDatabase db, Candidate object, PackOutputStream out,
+      Deflater deflater) throws IOException, DataFormatException {
+    if (object.offset >= 0) {
+      return;
+    }
+    if (object.base != null) {
+      writeObject(db, object.base, out, deflater);
+    }
+
+    object.offset = out.count();
+    out.startEntry();
+    deflater.reset();
+    if (object.base != null) {
+      writeEntryHeader(out, OBJ_OFS_DELTA, object.delta.length);
+      writeBaseDistance(out, object.offset - object.base.offset);
+      DeflaterOutputStream zlib = new DeflaterOutputStream(out, deflater, 8192);
+      zlib.write(object.delta);
+      zlib.finish();
+      object.delta = null;  // Not needed any more
+    } else {
+      writeEntryHeader(out, object.type, object.size);
+      DeflaterOutputStream zlib = new DeflaterOutputStream(out, deflater, 8192);
+      if (!db.copyTo(ObjectId.toHex(object.id), zlib)) {
+        throw new IOException("Missing object " + ObjectId.toHex(object.id));
+      }
+      zlib.finish();
+    }
+    object.crc32 = out.entryCrc32();
+  }
+
+  /**
+   * Writes an entry's type and inflated size: 4 bits of size next to the type, then
+   * 7 bits per byte.
+   */
+  private static void writeEntryHeader(OutputStream out, int type, long size) throws IOException {
+    int b = (type << 4) | (int) (size & 0x0F);
+    size >>>= 4;
+    while (size != 0) {
+      out.write(b | 0x80);
+      b = (int) (size & 0x7F);
+      size >>>= 7;
+    }
+    out.write(b);
+  }
+
+  /**
+   * Writes how far back an OFS_DELTA's base starts: big-endian 7-bit groups, each but
+   * the last one biased by one.
+   */
+  private static void writeBaseDistance(OutputStream out, long distance) throws IOException {
+    byte[] buffer = new byte[10];
+    int position = buffer.length - 1;
+    buffer[position] = (byte) (distance & 0x7F);
+    while ((distance >>>= 7) != 0) {
+      buffer[--position] = (byte) (0x80 | (--distance & 0x7F));
+    }
+    out.write(buffer, position, buffer.length - position);
+  }
+
+  /**
+   * Counts, hashes and checksums what goes into the pack file: the pack's SHA-1
+   * trailer covers everything, and the .idx needs a CRC32 of each entry.
+   */
+  private static final class PackOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final MessageDigest sha1;
+    private final CRC32 crc32 = new CRC32();
+    private long count;
+
+    PackOutputStream(OutputStream out) throws NoSuchAlgorithmException {
+      this.out = new BufferedOutputStream(out, 64 * 1024);
+      this.sha1 = MessageDigest.getInstance("SHA-1");
+    }
+
+    long count() {
+      return count;
+    }
+
+    void startEntry() {
+      crc32.reset();
+    }
+
+    int entryCrc32() {
+      return (int) crc32.getValue();
+    }
+
+    byte[] digest() {
+      return sha1.digest();
+    }
+
+    void writeInt(int value) throws IOException {
+      write(new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      sha1.update((byte) b);
+      crc32.update(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      sha1.update(b, off, len);
+      crc32.update(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  // ============ PRUNING ============
+
+  /**
+   * Deletes the loose objects that are now in the new pack, and the old packs all of
+   * whose objects are. A pack holding anything the new one lacks, such as objects
+   * only a reflog reaches, is left alone, since nothing else has a copy of it.
+   * Returns how many loose objects were deleted.
+   */
+  private int prune(File stored, List<PackIndexWriter.Entry> entries) throws IOException {
+    File packDir = stored.getParentFile();
+    String keep = stored.getName().substring(0, stored.getName().length() - ".pack".length());
+
+    // Step 1: Old packs the new one covers, .idx first so nobody finds a pack that is about to go
+    File[] indexes = packDir.listFiles((dir, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+    if (indexes != null) {
+      try (PackIndex kept = new PackIndex(new File(packDir, keep + ".idx"))) {
+        for (File idx : indexes) {
+          String name = idx.getName().substring(0, idx.getName().length() - ".idx".length());
+          if (name.equals(keep)) {
+            continue;
+          }
+          boolean covered;
+          try (PackIndex old = new PackIndex(idx)) {
+            covered = old.isCoveredBy(kept);
+          }
+          if (covered) {
+            Files.deleteIfExists(idx.toPath());
+            Files.deleteIfExists(new File(packDir, name + ".pack").toPath());
+          }
+        }
+      }
+    }
+
+    // Step 2: Loose objects, and fan-out directories left empty
+    File objectsDir = new File(gitDir, "objects");
+    Set<File> fanOut = new HashSet<File>();
+    int pruned = 0;
+    for (PackIndexWriter.Entry entry : entries) {
+      String hex = ObjectId.toHex(entry.sha);
+      File dir = new File(objectsDir, hex.substring(0, 2));
+      if (Files.deleteIfExists(new File(dir, hex.substring(2)).toPath())) {
+        fanOut.add(dir);
+        pruned++;
+      }
+    }
+    for (File dir : fanOut) {
+      String[] rest = dir.list();
+      if (rest != null && rest.length == 0) {
+        dir.delete();
+      }
+    }
+    return pruned;
+  }
+}
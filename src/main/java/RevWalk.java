@@ -0,0 +1,481 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * Walks commit history, for log, rev-list and merge-base.
+ *
+ * Commits in the commit-graph are parsed straight from it: parents, date and
+ * generation number are fixed-width fields there, so the walk never inflates them.
+ * Only commits written since the graph (or all of them, without one) are read from
+ * the object database and parsed. Generation numbers let ancestry checks stop at
+ * commits that are too old to lead anywhere.
+ */
+class RevWalk implements Closeable {
+  // Generation of commits that aren't in the graph: unknown, so never used to prune
+  static final int GENERATION_INFINITY = Integer.MAX_VALUE;
+
+  // Commit flags
+  private static final int SEEN = 1;
+  private static final int UNINTERESTING = 2;
+  private static final int REACHED = 4;
+
+  /**
+   * The order commits come out of next() in.
+   */
+  enum Order {
+    // Newest commit date first, like git log without options
+    DEFAULT,
+    // No commit before all of its children, otherwise newest date first (--date-order)
+    DATE,
+    // No commit before all of its children, each line of history kept together (--topo-order)
+    TOPO
+  }
+
+  /**
+   * One commit. Everything but the id is filled in by parse().
+   */
+  static final class Commit {
+    final ObjectId id;
+    final int graphPosition;  // -1 if it isn't in the commit-graph
+    Commit[] parents;         // null until parsed
+    ObjectId tree;
+    long time;                // Committer date, seconds since the epoch
+    int generation = GENERATION_INFINITY;
+
+    private int flags;
+    private int children;     // Children still to come out, for the topological orders
+    private long sequence;    // When it was queued, so equal dates keep that order
+
+    Commit(ObjectId id, int graphPosition) {
+      this.id = id;
+      this.graphPosition = graphPosition;
+    }
+  }
+
+  private static final Comparator<Commit> NEWEST_FIRST =
+      Comparator.<Commit>comparingLong(c -> -c.time).thenComparingLong(c -> c.sequence);
+
+  private final File gitDir;
+  private final ObjectDatabase db;
+  private final CommitGraph graph;
+  private final Set<ObjectId> shallow;
+
+  private final Map<ObjectId, Commit> commits = new HashMap<ObjectId, Commit>();
+  private final Commit[] byPosition;
+
+  private final List<Commit> starts = new ArrayList<Commit>();
+  private final List<Commit> uninteresting = new ArrayList<Commit>();
+  private Order order = Order.DEFAULT;
+  private long sequence;
+
+  // Set up by the first next()
+  private PriorityQueue<Commit> queue;
+  private List<Commit> sorted;
+  private int sortedPosition;
+
+  /**
+   * Opens the object database and commit-graph of the given .git directory.
+   */
+  RevWalk(File gitDir) throws IOException {
+    this.gitDir = gitDir;
+    this.db = ObjectDatabase.open(gitDir);
+    this.graph = CommitGraph.open(gitDir);
+    this.byPosition = new Commit[graph != null ? graph.size() : 0];
+    this.shallow = readShallow(gitDir);
+  }
+
+  ObjectDatabase db() {
+    return db;
+  }
+
+  void setOrder(Order order) {
+    this.order = order;
+  }
+
+  // ============ FINDING COMMITS ============
+
+  /**
+   * Returns the commit with the given id, which may not have been parsed yet.
+   */
+  Commit lookup(ObjectId id) {
+    Commit commit = commits.get(id);
+    if (commit == null) {
+      int position = graph != null ? graph.find(id.toRaw(), 0) : -1;
+      if (position >= 0 && byPosition[position] != null) {
+        return byPosition[position];
+      }
+      commit = new Commit(id, position);
+      commits.put(id, commit);
+      if (position >= 0) {
+        byPosition[position] = commit;
+      }
+    }
+    return commit;
+  }
+
+  private Commit lookup(int position) {
+    Commit commit = byPosition[position];
+    if (commit == null) {
+      byte[] id = new byte[20];
+      graph.idAt(position, id, 0);
+      commit = new Commit(ObjectId.fromRaw(id), position);
+      commits.put(commit.id, commit);
+      byPosition[position] = commit;
+    }
+    return commit;
+  }
+
+  /**
+   * Resolves a revision given on the command line (an id, a ref or a branch or tag
+   * name) to the commit it names, following annotated tags. Any number of ~<n>
+   * (n-th first-parent ancestor) and ^<n> (n-th parent) suffixes can follow it.
+   */
+  Commit resolve(String revision) throws IOException, DataFormatException {
+    int suffix = 0;
+    while (suffix < revision.length() && revision.charAt(suffix) != '~' && revision.charAt(suffix) != '^') {
+      suffix++;
+    }
+    Commit commit = resolveName(revision.substring(0, suffix));
+
+    int position = suffix;
+    while (position < revision.length()) {
+      char operator = revision.charAt(position++);
+      int digits = position;
+      while (position < revision.length() && Character.isDigit(revision.charAt(position))) {
+        position++;
+      }
+      if (operator != '~' && operator != '^') {
+        throw new IllegalArgumentException("bad revision '" + revision + "'");
+      }
+      int n = position > digits ? Integer.parseInt(revision.substring(digits, position)) : 1;
+
+      parse(commit);
+      if (operator == '~') {
+        for (int i = 0; i < n; i++) {
+          if (commit.parents.length == 0) {
+            throw new IllegalArgumentException("bad revision '" + revision + "'");
+          }
+          commit = commit.parents[0];
+          parse(commit);
+        }
+      } else if (n > 0) {
+        if (n > commit.parents.length) {
+          throw new IllegalArgumentException("bad revision '" + revision + "'");
+        }
+        commit = commit.parents[n - 1];
+      }
+    }
+    return commit;
+  }
+
+  private Commit resolveName(String name) throws IOException, DataFormatException {
+    String hex = Refs.resolve(gitDir, name);
+    if (hex == null) {
+      throw new IllegalArgumentException("bad revision '" + name + "'");
+    }
+
+    ObjectId id = ObjectId.fromHex(hex);
+    while (graph == null || graph.find(id.toRaw(), 0) < 0) {
+      ObjectHeader header = db.readHeader(id.toRaw(), 0);
+      if (header == null) {
+        throw new IllegalArgumentException("bad revision '" + name + "'");
+      }
+      if (header.type.equals("commit")) {
+        break;
+      }
+      if (!header.type.equals("tag")) {
+        throw new IllegalArgumentException(name + " is a " + header.type + ", not a commit");
+      }
+      id = ObjectId.fromHex(headerValue(db.read(id.toRaw(), 0).data, "object"));
+    }
+    return lookup(id);
+  }
+
+  /**
+   * Fills in the parents, tree, date and generation of a commit, from the
+   * commit-graph if it's there and by parsing the commit otherwise.
+   */
+  void parse(Commit commit) throws IOException, DataFormatException {
+    if (commit.parents != null) {
+      return;
+    }
+
+    if (commit.graphPosition >= 0) {
+      int[] positions = graph.parentsAt(commit.graphPosition);
+      Commit[] parents = new Commit[positions.length];
+      for (int i = 0; i < positions.length; i++) {
+        parents[i] = lookup(positions[i]);
+      }
+      byte[] tree = new byte[20];
+      graph.treeAt(commit.graphPosition, tree, 0);
+      commit.tree = ObjectId.fromRaw(tree);
+      commit.time = graph.commitTimeAt(commit.graphPosition);
+      commit.generation = graph.generationAt(commit.graphPosition);
+      commit.parents = parents;
+      return;
+    }
+
+    GitObject object = db.read(commit.id.toRaw(), 0);
+    if (object == null) {
+      throw new IOException("Missing commit " + commit.id);
+    }
+    if (!object.type.equals("commit")) {
+      throw new IOException(commit.id + " is a " + object.type + ", not a commit");
+    }
+
+    // Header lines up to the blank line before the message
+    List<Commit> parents = new ArrayList<Commit>(1);
+    byte[] data = object.data;
+    int position = 0;
+    while (position < data.length && data[position] != '\n') {
+      int end = position;
+      while (end < data.length && data[end] != '\n') {
+        end++;
+      }
+      String line = new String(data, position, end - position, StandardCharsets.UTF_8);
+      if (line.startsWith("tree ")) {
+        commit.tree = ObjectId.fromHex(line.substring(5));
+      } else if (line.startsWith("parent ")) {
+        parents.add(lookup(ObjectId.fromHex(line.substring(7))));
+      } else if (line.startsWith("committer ")) {
+        commit.time = parseTime(line);
+      }
+      position = end + 1;
+    }
+
+    // A shallow commit's parents are missing on purpose
+    commit.parents = shallow.contains(commit.id) ? new Commit[0] : parents.toArray(new Commit[0]);
+  }
+
+  // ============ WALKING ============
+
+  /**
+   * Adds a commit whose history the walk shows.
+   */
+  void markStart(Commit commit) {
+    starts.add(commit);
+  }
+
+  /**
+   * Adds a commit whose history the walk leaves out (like ^commit on the command line).
+   */
+  void markUninteresting(Commit commit) {
+    uninteresting.add(commit);
+  }
+
+  /**
+   * Returns the next commit of the walk, or null once all were shown.
+   */
+  Commit next() throws IOException, DataFormatException {
+    if (queue == null && sorted == null) {
+      start();
+    }
+
+    if (sorted != null) {
+      return sortedPosition < sorted.size() ? sorted.get(sortedPosition++) : null;
+    }
+
+    Commit commit = queue.poll();
+    if (commit == null) {
+      return null;
+    }
+    for (Commit parent : commit.parents) {
+      enqueue(parent);
+    }
+    return commit;
+  }
+
+  /**
+   * Returns every commit the walk would show, parsed, in no particular order.
+   */
+  List<Commit> reachable() throws IOException, DataFormatException {
+    markAncestors(uninteresting, UNINTERESTING);
+    List<Commit> all = new ArrayList<Commit>();
+    Deque<Commit> pending = new ArrayDeque<Commit>(starts);
+    while (!pending.isEmpty()) {
+      Commit commit = pending.pop();
+      if ((commit.flags & (SEEN | UNINTERESTING)) != 0) {
+        continue;
+      }
+      commit.flags |= SEEN;
+      parse(commit);
+      all.add(commit);
+      for (Commit parent : commit.parents) {
+        pending.push(parent);
+      }
+    }
+    return all;
+  }
+
+  private void start() throws IOException, DataFormatException {
+    if (order == Order.DEFAULT) {
+      markAncestors(uninteresting, UNINTERESTING);
+      queue = new PriorityQueue<Commit>(NEWEST_FIRST);
+      for (Commit commit : starts) {
+        enqueue(commit);
+      }
+      return;
+    }
+
+    // Step 1: Count each commit's children within the walk
+    List<Commit> all = reachable();
+    for (Commit commit : all) {
+      for (Commit parent : commit.parents) {
+        if ((parent.flags & UNINTERESTING) == 0) {
+          parent.children++;
+        }
+      }
+    }
+
+    // Step 2: Start from the commits without children, and let a commit out once
+    // all of its children are. --date-order picks the newest of the ready ones,
+    // --topo-order keeps going down the line it's on, starting with the last parent
+    PriorityQueue<Commit> byDate = new PriorityQueue<Commit>(NEWEST_FIRST);
+    Deque<Commit> stack = new ArrayDeque<Commit>();
+    for (int i = starts.size() - 1; i >= 0; i--) {
+      Commit commit = starts.get(i);
+      if ((commit.flags & (UNINTERESTING | REACHED)) == 0 && commit.children == 0) {
+        commit.flags |= REACHED;
+        commit.sequence = sequence++;
+        byDate.add(commit);
+        stack.push(commit);
+      }
+    }
+
+    sorted = new ArrayList<Commit>(all.size());
+    while (order == Order.DATE ? !byDate.isEmpty() : !stack.isEmpty()) {
+      Commit commit = order == Order.DATE ? byDate.poll() : stack.pop();
+      sorted.add(commit);
+      for (Commit parent : commit.parents) {
+        if ((parent.flags & UNINTERESTING) == 0 && --parent.children == 0) {
+          parent.sequence = sequence++;
+          byDate.add(parent);
+          stack.push(parent);
+        }
+      }
+    }
+  }
+
+  private void enqueue(Commit commit) throws IOException, DataFormatException {
+    if ((commit.flags & (SEEN | UNINTERESTING)) != 0) {
+      return;
+    }
+    commit.flags |= SEEN;
+    parse(commit);
+    commit.sequence = sequence++;
+    queue.add(commit);
+  }
+
+  /**
+   * Sets flag on the given commits and all of their ancestors.
+   */
+  private void markAncestors(List<Commit> tips, int flag) throws IOException, DataFormatException {
+    Deque<Commit> pending = new ArrayDeque<Commit>(tips);
+    while (!pending.isEmpty()) {
+      Commit commit = pending.pop();
+      if ((commit.flags & flag) != 0) {
+        continue;
+      }
+      commit.flags |= flag;
+      parse(commit);
+      for (Commit parent : commit.parents) {
+        pending.push(parent);
+      }
+    }
+  }
+
+  // ============ ANCESTRY ============
+
+  /**
+   * Returns whether ancestor is reachable from descendant (a commit is its own ancestor).
+   * Commits with a lower generation number than ancestor can't lead to it, so the
+   * search never goes below them.
+   */
+  boolean isAncestor(Commit ancestor, Commit descendant) throws IOException, DataFormatException {
+    parse(ancestor);
+    Deque<Commit> pending = new ArrayDeque<Commit>();
+    pending.push(descendant);
+    descendant.flags |= REACHED;
+    while (!pending.isEmpty()) {
+      Commit commit = pending.pop();
+      if (commit == ancestor) {
+        return true;
+      }
+      parse(commit);
+      if (commit.generation < ancestor.generation) {
+        continue;
+      }
+      for (Commit parent : commit.parents) {
+        if ((parent.flags & REACHED) == 0) {
+          parent.flags |= REACHED;
+          pending.push(parent);
+        }
+      }
+    }
+    return false;
+  }
+
+  // ============ PARSING ============
+
+  /**
+   * Returns the value of the first header line starting with key in a commit or tag.
+   */
+  static String headerValue(byte[] data, String key) throws IOException {
+    String text = new String(data, StandardCharsets.UTF_8);
+    int end = text.indexOf("\n\n");
+    for (String line : (end >= 0 ? text.substring(0, end) : text).split("\n")) {
+      if (line.startsWith(key + " ")) {
+        return line.substring(key.length() + 1);
+      }
+    }
+    throw new IOException("No " + key + " header");
+  }
+
+  /**
+   * Reads the seconds since the epoch from "<name> <<email>> <seconds> <zone>".
+   */
+  static long parseTime(String identity) {
+    int email = identity.lastIndexOf('>');
+    String[] rest = identity.substring(email + 1).trim().split(" ");
+    try {
+      return Long.parseLong(rest[0]);
+    } catch (NumberFormatException e) {
+      return 0;  // Like git, a commit with a broken date sorts as the oldest
+    }
+  }
+
+  private static Set<ObjectId> readShallow(File gitDir) throws IOException {
+    Set<ObjectId> shallow = new HashSet<ObjectId>();
+    File file = new File(gitDir, "shallow");
+    if (file.isFile()) {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII)) {
+        if (ObjectId.isHex(line.trim())) {
+          shallow.add(ObjectId.fromHex(line.trim()));
+        }
+      }
+    }
+    return shallow;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (graph != null) {
+      graph.close();
+    }
+    db.close();
+  }
+}
@@ -0,0 +1,203 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Timing for the phases of a command (discovering refs, downloading the pack, resolving
+ * deltas, checkout, write-tree, ...).
+ *
+ * Every phase is a JFR event, git.Phase, with its byte and object counts, deepest
+ * delta chain and delta base cache hits, so a flight recording shows where a slow
+ * clone spent its time. With --stats the phases of the command are also collected
+ * and printed when it ends, along with the peak heap. With neither on, a phase costs
+ * a clock read and a flag check.
+ */
+final class Stats {
+  @Name("git.Phase")
+  @Label("Git Phase")
+  @Category("Git")
+  @Description("One phase of a git command")
+  @StackTrace(false)
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Objects")
+    long objects;
+
+    @Label("Delta Depth")
+    @Description("Longest delta chain resolved")
+    int deltaDepth;
+
+    @Label("Cache Hits")
+    @Description("Delta bases found in the delta base cache")
+    long cacheHits;
+
+    @Label("Cache Misses")
+    long cacheMisses;
+  }
+
+  /**
+   * A running phase. Counts can be added while it runs; close() ends it.
+   */
+  static final class Phase implements AutoCloseable {
+    private final String name;
+    private final PhaseEvent event;
+    private final long start = System.nanoTime();
+    private long nanos;
+    private long bytes;
+    private long objects;
+    private int deltaDepth;
+    private long cacheHits;
+    private long cacheMisses;
+
+    private Phase(String name) {
+      this.name = name;
+      // Loading an event class brings up JFR, which costs hundreds of milliseconds
+      // of startup, so there's no event unless a recording is already running
+      if (FlightRecorder.isInitialized()) {
+        event = new PhaseEvent();
+        event.begin();
+      } else {
+        event = null;
+      }
+    }
+
+    Phase bytes(long bytes) {
+      this.bytes = bytes;
+      return this;
+    }
+
+    Phase objects(long objects) {
+      this.objects = objects;
+      return this;
+    }
+
+    Phase deltaDepth(int deltaDepth) {
+      this.deltaDepth = deltaDepth;
+      return this;
+    }
+
+    Phase cache(long hits, long misses) {
+      this.cacheHits = hits;
+      this.cacheMisses = misses;
+      return this;
+    }
+
+    @Override
+    public void close() {
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.phase = name;
+          event.bytes = bytes;
+          event.objects = objects;
+          event.deltaDepth = deltaDepth;
+          event.cacheHits = cacheHits;
+          event.cacheMisses = cacheMisses;
+          event.commit();
+        }
+      }
+
+      List<Phase> collected = phases;
+      if (collected != null) {
+        nanos = System.nanoTime() - start;
+        synchronized (collected) {
+          collected.add(this);
+        }
+      }
+    }
+  }
+
+  // Phases of the current command, or null unless --stats was given
+  private static volatile List<Phase> phases;
+
+  private Stats() {
+  }
+
+  /**
+   * Starts a phase. Use it in a try-with-resources block.
+   */
+  static Phase start(String name) {
+    return new Phase(name);
+  }
+
+  /**
+   * Starts collecting phases for a summary, and the peak heap from here on.
+   */
+  static void collect() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    phases = new ArrayList<Phase>();
+  }
+
+  /**
+   * Prints the collected phases and stops collecting.
+   */
+  static void report(PrintStream out) {
+    List<Phase> collected = phases;
+    phases = null;
+    if (collected == null) {
+      return;
+    }
+
+    out.println(String.format("%-16s %10s %12s %10s %12s", "phase", "time", "bytes", "objects", "objects/s"));
+    synchronized (collected) {
+      for (Phase phase : collected) {
+        double seconds = phase.nanos / 1e9;
+        out.println(String.format("%-16s %8.1fms %12s %10s %12s",
+            phase.name,
+            phase.nanos / 1e6,
+            phase.bytes > 0 ? formatBytes(phase.bytes) : "-",
+            phase.objects > 0 ? Long.toString(phase.objects) : "-",
+            phase.objects > 0 && seconds > 0 ? String.format("%.0f", phase.objects / seconds) : "-")
+            + (phase.deltaDepth > 0 ? "  delta depth " + phase.deltaDepth : "")
+            + (phase.cacheHits + phase.cacheMisses > 0
+                ? "  cache " + phase.cacheHits + " hits, " + phase.cacheMisses + " misses" : ""));
+      }
+    }
+    out.println("peak heap: " + formatBytes(peakHeap()));
+  }
+
+  /**
+   * Sums the peak usage of the heap's memory pools since collect().
+   */
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    }
+    if (bytes < 1024 * 1024) {
+      return String.format("%.1f KiB", bytes / 1024.0);
+    }
+    if (bytes < 1024L * 1024 * 1024) {
+      return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+    }
+    return String.format("%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+  }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Walks the entries of a raw tree object in place, without allocating per entry.
+ * Each entry is "<octal mode> <name>\0<20-byte id>"; after next() the mode is
+ * available as an int, the name as a slice of the tree buffer and the id as an
+ * offset into it. One cursor can be reset() onto another tree and reused.
+ */
+class TreeCursor {
+  static final int MODE_TREE = 0040000;
+  static final int MODE_FILE = 0100644;
+  static final int MODE_EXECUTABLE = 0100755;
+  static final int MODE_SYMLINK = 0120000;
+  static final int MODE_GITLINK = 0160000;
+
+  private byte[] data;
+  private int end;
+  private int position;
+
+  private int mode;
+  private int nameStart;
+  private int nameEnd;
+  private int idOffset;
+
+  TreeCursor() {
+  }
+
+  TreeCursor(byte[] data) {
+    reset(data);
+  }
+
+  /**
+   * Points the cursor before the first entry of the given tree content.
+   */
+  TreeCursor reset(byte[] data) {
+    this.data = data;
+    this.end = data.length;
+    this.position = 0;
+    return this;
+  }
+
+  /**
+   * Moves to the next entry. Returns false once all entries were read.
+   */
+  boolean next() throws IOException {
+    if (position >= end) {
+      return false;
+    }
+
+    // Mode: octal digits up to the space
+    int value = 0;
+    int b;
+    while ((b = data[position++]) != ' ') {
+      if (b < '0' || b > '7' || position >= end) {
+        throw new IOException("Bad mode in tree entry at " + (position - 1));
+      }
+      value = (value << 3) | (b - '0');
+    }
+    mode = value;
+
+    // Name: up to the null byte
+    nameStart = position;
+    while (position < end && data[position] != 0) {
+      position++;
+    }
+    nameEnd = position;
+
+    // Id: 20 raw bytes after the null byte
+    idOffset = position + 1;
+    position = idOffset + 20;
+    if (position > end) {
+      throw new IOException("Truncated tree entry at " + nameStart);
+    }
+    return true;
+  }
+
+  int mode() {
+    return mode;
+  }
+
+  boolean isTree() {
+    return mode == MODE_TREE;
+  }
+
+  boolean isGitlink() {
+    return mode == MODE_GITLINK;
+  }
+
+  /**
+   * Returns the type of object the entry points to, based on its mode.
+   */
+  String type() {
+    if (mode == MODE_TREE) {
+      return "tree";
+    }
+    return mode == MODE_GITLINK ? "commit" : "blob";
+  }
+
+  /**
+   * Returns the buffer the name and id slices point into.
+   */
+  byte[] buffer() {
+    return data;
+  }
+
+  int nameOffset() {
+    return nameStart;
+  }
+
+  int nameLength() {
+    return nameEnd - nameStart;
+  }
+
+  /**
+   * Returns where the entry's 20-byte id starts in buffer().
+   */
+  int idOffset() {
+    return idOffset;
+  }
+
+  /**
+   * Decodes the name. Allocates, so only for callers that need a String anyway.
+   */
+  String name() {
+    return new String(data, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the mode as six octal digits, like ls-tree shows it ("040000", "100644").
+   */
+  void writeMode(OutputStream out) throws IOException {
+    for (int shift = 15; shift >= 0; shift -= 3) {
+      out.write('0' + ((mode >>> shift) & 7));
+    }
+  }
+
+  void writeName(OutputStream out) throws IOException {
+    out.write(data, nameStart, nameEnd - nameStart);
+  }
+
+  /**
+   * Writes the id as 40 lowercase hex characters.
+   */
+  void writeId(OutputStream out) throws IOException {
+    ObjectId.writeHex(data, idOffset, out);
+  }
+}